@@ -0,0 +1,442 @@
+package db61b;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/** Micro-benchmarks of db61b's inner loops, run by 'make bench'.  Each
+ *  benchmark is an operation repeated in a loop, timed with
+ *  System.nanoTime after enough unmeasured rounds for the JIT compiler
+ *  to settle, and reported as the best time per operation over several
+ *  measured rounds.  Every operation's result feeds a checksum that is
+ *  printed at the end, so that the compiler cannot discard the work.
+ *  With arguments, runs only the benchmarks whose names start with one
+ *  of them.
+ *
+ *  Besides single-cell reads, there is a suite of whole-table operations
+ *  (reading, adding rows singly and in a batch, selects with 0, 1, and
+ *  3 conditions, a join, printing, and writing) on random tables of each
+ *  of the sizes listed in the system property db61b.benchRows (10000,
+ *  100000, and 1000000 rows by default).  These count one operation per
+ *  row of input, so that times for different sizes are comparable, and
+ *  stop repeating a slow operation once it has run for a few seconds.
+ *  Last, the two lexers (see Tokenizer.Lexer) split a long script of
+ *  insert statements into tokens, one operation per token, and tables
+ *  are looked up by name in a database of thousands of them.
+ *  @author Matthew Brennan
+ */
+class Benchmark {
+
+    /** Run the benchmarks selected by ARGS (all of them, if none). */
+    public static void main(String[] args) {
+        Benchmark bench = new Benchmark(args);
+        bench.cellAccess();
+        for (String rows : System.getProperty("db61b.benchRows",
+                                              DEFAULT_ROWS).split(",")) {
+            bench.tableOperations(Integer.parseInt(rows.trim()));
+        }
+        bench.lexing();
+        bench.catalog();
+        System.out.printf("(checksum %d)%n", bench._sink);
+    }
+
+    /** A benchmark runner that runs those benchmarks whose names start
+     *  with one of SELECTED, or all of them if SELECTED is empty. */
+    Benchmark(String[] selected) {
+        _selected = selected;
+    }
+
+    /** An operation to be timed. */
+    interface Body {
+        /** Perform my operation OPS times, returning a value that depends
+         *  on every result. */
+        long run(int ops);
+    }
+
+    /** Time BODY, which performs OPS operations per call, and report its
+     *  cost per operation under the name NAME, if selected.  Runs at
+     *  most WARMUP_ROUNDS unmeasured and ROUNDS measured rounds, but
+     *  fewer once each kind has taken ROUNDS_NANOS in all (though always
+     *  at least one and MIN_ROUNDS, respectively). */
+    void measure(String name, int ops, Body body) {
+        if (!selected(name)) {
+            return;
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < WARMUP_ROUNDS
+                 && (i == 0 || System.nanoTime() - start < ROUNDS_NANOS);
+             i += 1) {
+            _sink += body.run(ops);
+        }
+        long best = Long.MAX_VALUE;
+        long total = 0;
+        for (int i = 0; i < ROUNDS
+                 && (i < MIN_ROUNDS || total < ROUNDS_NANOS); i += 1) {
+            long round = System.nanoTime();
+            _sink += body.run(ops);
+            round = System.nanoTime() - round;
+            best = Math.min(best, round);
+            total += round;
+        }
+        System.out.printf("%-36s %10.2f ns/op%n", name, (double) best / ops);
+    }
+
+    /** Return true iff the benchmark named NAME was selected. */
+    boolean selected(String name) {
+        if (_selected.length == 0) {
+            return true;
+        }
+        for (String prefix : _selected) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Return a table with columns TITLES and ROWS rows of random values,
+     *  column k having about DISTINCT[k] distinct values. */
+    static Table randomTable(String[] titles, int[] distinct, int rows) {
+        return tableOf(titles, randomRows(titles, distinct, rows));
+    }
+
+    /** Return ROWS rows of random values for columns TITLES, column k
+     *  having about DISTINCT[k] distinct values, each the column's title
+     *  followed by a number less than DISTINCT[k]. */
+    static String[][] randomRows(String[] titles, int[] distinct, int rows) {
+        Random random = new Random(RANDOM_SEED);
+        String[][] batch = new String[rows][titles.length];
+        for (int r = 0; r < rows; r += 1) {
+            for (int k = 0; k < titles.length; k += 1) {
+                batch[r][k] = titles[k] + random.nextInt(distinct[k]);
+            }
+        }
+        return batch;
+    }
+
+    /** Return a table with columns TITLES holding ROWS (less any
+     *  duplicates), loaded in bulk. */
+    static Table tableOf(String[] titles, String[][] rows) {
+        Table table = new Table(titles);
+        table.appendRows(rows, rows.length);
+        table.reindex();
+        return table;
+    }
+
+    /** Benchmarks of reading one value (a cell) of a table by each of the
+     *  available paths. */
+    void cellAccess() {
+        final Table table =
+            randomTable(new String[] { "A", "B", "C", "D" },
+                        new int[] { 5000, 100, 1000, 10 }, CELL_ROWS);
+        final int rows = table.size();
+        final int cols = table.columns();
+        final List<Column> columns = new ArrayList<>();
+        for (int k = 0; k < cols; k += 1) {
+            columns.add(new Column(table.getTitle(k), table));
+        }
+        measure("cell.Table.get", rows * cols, new Body() {
+            @Override
+            public long run(int ops) {
+                long sum = 0;
+                for (int r = 0; r < rows; r += 1) {
+                    for (int k = 0; k < cols; k += 1) {
+                        sum += table.get(r, k).length();
+                    }
+                }
+                return sum;
+            }
+        });
+        measure("cell.Column.getFrom", rows * cols, new Body() {
+            @Override
+            public long run(int ops) {
+                long sum = 0;
+                for (int r = 0; r < rows; r += 1) {
+                    for (Column column : columns) {
+                        sum += column.getFrom(r).length();
+                    }
+                }
+                return sum;
+            }
+        });
+        measure("cell.Column.value", rows * cols, new Body() {
+            @Override
+            public long run(int ops) {
+                long sum = 0;
+                for (int r = 0; r < rows; r += 1) {
+                    for (Column column : columns) {
+                        sum += column.value(r, r).length();
+                    }
+                }
+                return sum;
+            }
+        });
+        final ValueList[] values = new ValueList[cols];
+        for (int k = 0; k < cols; k += 1) {
+            values[k] = table.column(k);
+        }
+        measure("cell.ValueList.get", rows * cols, new Body() {
+            @Override
+            public long run(int ops) {
+                long sum = 0;
+                for (int r = 0; r < rows; r += 1) {
+                    for (ValueList column : values) {
+                        sum += column.get(r).length();
+                    }
+                }
+                return sum;
+            }
+        });
+        measure("cell.ValueList.code", rows * cols, new Body() {
+            @Override
+            public long run(int ops) {
+                long sum = 0;
+                for (int r = 0; r < rows; r += 1) {
+                    for (ValueList column : values) {
+                        sum += column.code(r);
+                    }
+                }
+                return sum;
+            }
+        });
+    }
+
+    /** Benchmarks of whole-table operations on random tables of ROWS
+     *  rows, named OPERATION.ROWS.  The selects and join read a table
+     *  T(A, B, C, D), in which A is nearly unique and B, C, and D have
+     *  100, 1000, and 10 distinct values; the join is with a table U(A,
+     *  E) of the same size, each row of which matches about one of T. */
+    void tableOperations(final int rows) {
+        final String[] titles = { "A", "B", "C", "D" };
+        String[][] data =
+            randomRows(titles, new int[] { rows, 100, 1000, 10 }, rows);
+        final Table table = tableOf(titles, data);
+        final Table other =
+            randomTable(new String[] { "A", "E" }, new int[] { rows, 100 },
+                        rows);
+        final String suffix = "." + rows;
+
+        final String[][] added = data;
+        measure("add" + suffix, rows, new Body() {
+            @Override
+            public long run(int ops) {
+                Table result = new Table(titles);
+                for (String[] row : added) {
+                    result.add(row);
+                }
+                return result.size();
+            }
+        });
+        measure("addAll" + suffix, rows, new Body() {
+            @Override
+            public long run(int ops) {
+                Table result = new Table(titles);
+                return result.addAll(Arrays.asList(added));
+            }
+        });
+        data = null;
+
+        final List<String> all = Arrays.asList(titles);
+        measure("select.0" + suffix, rows,
+                selectBody(table, all, new ArrayList<Condition>()));
+        measure("select.1" + suffix, rows,
+                selectBody(table, all, Arrays.asList(
+                    new Condition(new Column("B", table), "=", "B7"))));
+        measure("select.3" + suffix, rows,
+                selectBody(table, all, Arrays.asList(
+                    new Condition(new Column("B", table), "<", "B50"),
+                    new Condition(new Column("C", table), ">", "C2"),
+                    new Condition(new Column("D", table), "!=", "D3"))));
+        measure("join" + suffix, rows, new Body() {
+            @Override
+            public long run(int ops) {
+                return table.select(other, Arrays.asList("A", "B", "E"),
+                                    new ArrayList<Condition>()).size();
+            }
+        });
+        measure("print" + suffix, rows, new Body() {
+            @Override
+            public long run(int ops) {
+                PrintStream stdout = System.out;
+                System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+                try {
+                    table.print();
+                } finally {
+                    System.setOut(stdout);
+                }
+                return table.size();
+            }
+        });
+
+        File dir;
+        try {
+            dir = Files.createTempDirectory("db61b").toFile();
+        } catch (IOException e) {
+            System.err.println("cannot create a temporary directory");
+            return;
+        }
+        final String name = new File(dir, "bench").getPath();
+        try {
+            measure("writeTable" + suffix, rows, new Body() {
+                @Override
+                public long run(int ops) {
+                    table.writeTable(name);
+                    return 1;
+                }
+            });
+            if (selected("readTable" + suffix)) {
+                table.writeTable(name);
+            }
+            measure("readTable" + suffix, rows, new Body() {
+                @Override
+                public long run(int ops) {
+                    return Table.readTable(name).size();
+                }
+            });
+        } finally {
+            new File(name + ".db").delete();
+            dir.delete();
+        }
+    }
+
+    /** Benchmarks of breaking a script of SCRIPT_ROWS insert statements
+     *  into tokens with the regular-expression lexer that Tokenizer used
+     *  to use and with CharLexer, which must agree on every token. */
+    void lexing() {
+        if (!selected("lex.")) {
+            return;
+        }
+        StringBuilder text = new StringBuilder();
+        String[][] rows =
+            randomRows(new String[] { "Name", "City", "Score" },
+                       new int[] { 50000, 300, 100 }, SCRIPT_ROWS);
+        for (int r = 0; r < SCRIPT_ROWS; r += 1) {
+            if (r % 1000 == 0) {
+                text.append("/* Batch ").append(r / 1000).append(" */\n");
+            }
+            text.append("insert into people values ('").append(rows[r][0])
+                .append("', '").append(rows[r][1]).append("', '")
+                .append(rows[r][2]).append("');\n");
+        }
+        final String script = text.toString();
+        List<String> expected = tokens(new Tokenizer.PatternLexer(
+            new StringReader(script)));
+        if (!expected.equals(tokens(new CharLexer(
+            new StringReader(script))))) {
+            throw new AssertionError("lexers disagree");
+        }
+        measure("lex.regex", expected.size(), new Body() {
+            @Override
+            public long run(int ops) {
+                return lexerSum(new Tokenizer.PatternLexer(
+                    new StringReader(script)));
+            }
+        });
+        measure("lex.chars", expected.size(), new Body() {
+            @Override
+            public long run(int ops) {
+                return lexerSum(new CharLexer(new StringReader(script)));
+            }
+        });
+    }
+
+    /** Benchmark looking tables up by name in a Database holding
+     *  CATALOG_TABLES of them, under names spelled as they were created
+     *  and in other cases. */
+    void catalog() {
+        final Database db = new Database();
+        Table table = new Table(new String[] { "A" });
+        final String[] names = new String[CATALOG_TABLES];
+        final String[] folded = new String[CATALOG_TABLES];
+        for (int i = 0; i < CATALOG_TABLES; i += 1) {
+            names[i] = "Staging" + i;
+            folded[i] = "STAGING" + i;
+            db.put(names[i], table);
+        }
+        measure("catalog.get", CATALOG_TABLES, new Body() {
+            @Override
+            public long run(int ops) {
+                long sum = 0;
+                for (String name : names) {
+                    sum += db.get(name).columns();
+                }
+                return sum;
+            }
+        });
+        measure("catalog.get.case", CATALOG_TABLES, new Body() {
+            @Override
+            public long run(int ops) {
+                long sum = 0;
+                for (String name : folded) {
+                    sum += db.get(name).columns();
+                }
+                return sum;
+            }
+        });
+    }
+
+    /** Return all the tokens from LEXER. */
+    private static List<String> tokens(Tokenizer.Lexer lexer) {
+        ArrayList<String> result = new ArrayList<>();
+        for (String token = lexer.next(); token != null;
+             token = lexer.next()) {
+            result.add(token);
+        }
+        return result;
+    }
+
+    /** Return the total length of all the tokens from LEXER. */
+    private static long lexerSum(Tokenizer.Lexer lexer) {
+        long sum = 0;
+        for (String token = lexer.next(); token != null;
+             token = lexer.next()) {
+            sum += token.length();
+        }
+        return sum;
+    }
+
+    /** Return the body of a benchmark that selects COLUMNS from TABLE in
+     *  rows satisfying CONDITIONS. */
+    private static Body selectBody(final Table table,
+                                   final List<String> columns,
+                                   final List<Condition> conditions) {
+        return new Body() {
+            @Override
+            public long run(int ops) {
+                return table.select(columns, conditions).size();
+            }
+        };
+    }
+
+    /** Maximum number of unmeasured rounds of each benchmark. */
+    private static final int WARMUP_ROUNDS = 5;
+    /** Maximum number of measured rounds of each benchmark. */
+    private static final int ROUNDS = 10;
+    /** Minimum number of measured rounds of each benchmark. */
+    private static final int MIN_ROUNDS = 3;
+    /** Time after which a benchmark stops starting new unmeasured, or
+     *  (after MIN_ROUNDS) measured, rounds. */
+    private static final long ROUNDS_NANOS = 2_000_000_000L;
+    /** Number of insert statements in the lexing benchmarks' script. */
+    private static final int SCRIPT_ROWS = 200000;
+    /** Default table sizes for the whole-table benchmarks. */
+    private static final String DEFAULT_ROWS = "10000,100000,1000000";
+    /** Seed for random test data, fixed so that runs are comparable. */
+    private static final long RANDOM_SEED = 61;
+    /** Number of rows in the cell-access benchmarks' table. */
+    private static final int CELL_ROWS = 200000;
+    /** Number of tables in the catalog benchmarks' database. */
+    private static final int CATALOG_TABLES = 5000;
+
+    /** Names (or prefixes of names) of the benchmarks to run. */
+    private final String[] _selected;
+    /** Checksum of all results. */
+    private long _sink;
+}
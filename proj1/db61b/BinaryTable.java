@@ -0,0 +1,237 @@
+package db61b;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import static db61b.Utils.*;
+
+/** Reads and writes Tables in a compact binary columnar format, kept in
+ *  files named NAME.dbb alongside the text NAME.db files.  Since a Table
+ *  already stores its columns dictionary-encoded (see ValueList), the
+ *  file holds exactly that encoding, and reading it involves no parsing
+ *  of values or re-encoding of rows.  All numbers are big-endian.
+ *
+ *      file     ::= MAGIC VERSION <columns:int> <rows:int> column*
+ *      column   ::= <title:string> <type:byte> <distinct:int>
+ *                   <value:string>* <width:byte> <code>*
+ *      string   ::= <length:int> <UTF-8 bytes>
+ *
+ *  Each column has its type (the ordinal of a ColumnType), then one
+ *  value per distinct value of the column, in order of code, followed
+ *  by one code per row, each WIDTH (1, 2, or 4) bytes long: the fewest
+ *  that can hold every code of the column.  A column that is a view of
+ *  another table's (see ValueList) is written with just the values in
+ *  its own rows.  Files of version 1, which
+ *  predate typed columns, have no type bytes, and hold only strings.
+ *  @author Matthew Brennan
+ */
+class BinaryTable {
+
+    /** Write TABLE to the file NAME.dbb.  Any I/O errors cause a
+     *  DBException.  As for Table.writeTable, the file is replaced only
+     *  once it has been completely written and synced to disk. */
+    static void write(Table table, String name) {
+        File temp = null;
+        DataOutputStream output = null;
+        try {
+            temp = tempFileFor(name + SUFFIX);
+            FileOutputStream file = new FileOutputStream(temp);
+            output = new DataOutputStream(new BufferedOutputStream(
+                file, BUFFER_SIZE));
+            int rows = table.size();
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(table.columns());
+            output.writeInt(rows);
+            for (int k = 0; k < table.columns(); k += 1) {
+                ValueList column = table.column(k).compacted();
+                writeString(output, table.getTitle(k));
+                output.writeByte(column.type().ordinal());
+                output.writeInt(column.distinct());
+                for (int c = 0; c < column.distinct(); c += 1) {
+                    writeString(output, column.value(c));
+                }
+                int width = width(column.distinct());
+                output.writeByte(width);
+                for (int r = 0; r < rows; r += 1) {
+                    int code = column.code(r);
+                    switch (width) {
+                    case 1:
+                        output.writeByte(code);
+                        break;
+                    case 2:
+                        output.writeShort(code);
+                        break;
+                    default:
+                        output.writeInt(code);
+                        break;
+                    }
+                }
+            }
+            syncFile(output, file);
+            output.close();
+            output = null;
+            replaceFile(temp, name + SUFFIX);
+            temp = null;
+        } catch (IOException e) {
+            throw error("trouble writing to %s%s", name, SUFFIX);
+        } finally {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    /* Already failing; the temporary file is deleted. */
+                }
+            }
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+    }
+
+    /** Read the contents of the file NAME.dbb, and return as a Table.
+     *  Format errors in the file cause a DBException. */
+    static Table read(String name) {
+        FileInputStream input;
+        try {
+            input = new FileInputStream(name + SUFFIX);
+        } catch (FileNotFoundException e) {
+            throw error("could not find %s%s", name, SUFFIX);
+        }
+        try {
+            FileChannel channel = input.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw error("%s%s is too large", name, SUFFIX);
+            }
+            ByteBuffer buffer =
+                channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return read(buffer);
+        } catch (IOException e) {
+            throw error("problem reading from %s%s", name, SUFFIX);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw error("%s%s is truncated or corrupt", name, SUFFIX);
+        } finally {
+            try {
+                input.close();
+            } catch (IOException e) {
+                /* Nothing more can be done. */
+            }
+        }
+    }
+
+    /** Return the Table whose encoding is the contents of BUFFER. */
+    private static Table read(ByteBuffer buffer) {
+        int version;
+        if (buffer.getInt() != MAGIC) {
+            throw error("not a binary table file");
+        }
+        version = buffer.getInt();
+        if (version < 1 || version > VERSION) {
+            throw error("not a binary table file");
+        }
+        int columns = buffer.getInt();
+        int rows = buffer.getInt();
+        if (columns < 0 || rows < 0) {
+            throw new IllegalArgumentException();
+        }
+        String[] titles = new String[columns];
+        ValueList[] values = new ValueList[columns];
+        for (int k = 0; k < columns; k += 1) {
+            titles[k] = readString(buffer);
+            ColumnType type = ColumnType.STRING;
+            if (version > 1) {
+                int t = buffer.get();
+                if (t < 0 || t >= ColumnType.values().length) {
+                    throw new IllegalArgumentException();
+                }
+                type = ColumnType.values()[t];
+            }
+            int distinct = buffer.getInt();
+            if (distinct < 0) {
+                throw new IllegalArgumentException();
+            }
+            String[] dictionary = new String[distinct];
+            for (int c = 0; c < distinct; c += 1) {
+                dictionary[c] = readString(buffer);
+            }
+            int[] codes = new int[rows];
+            int width = buffer.get();
+            switch (width) {
+            case 1:
+                for (int r = 0; r < rows; r += 1) {
+                    codes[r] = buffer.get() & 0xff;
+                }
+                break;
+            case 2:
+                for (int r = 0; r < rows; r += 1) {
+                    codes[r] = buffer.getShort() & 0xffff;
+                }
+                break;
+            case 4:
+                buffer.asIntBuffer().get(codes);
+                buffer.position(buffer.position() + 4 * rows);
+                break;
+            default:
+                throw new IllegalArgumentException();
+            }
+            for (int code : codes) {
+                if (code < 0 || code >= distinct) {
+                    throw new IllegalArgumentException();
+                }
+            }
+            values[k] = new ValueList(type, dictionary, codes, rows);
+        }
+        return new Table(titles, values);
+    }
+
+    /** Write S to OUTPUT as its length in bytes followed by its UTF-8
+     *  encoding. */
+    private static void writeString(DataOutputStream output, String s)
+        throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    /** Read and return a string written by writeString from BUFFER. */
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException();
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Return the number of bytes (1, 2, or 4) needed to hold each of
+     *  DISTINCT codes. */
+    private static int width(int distinct) {
+        if (distinct <= 1 << 8) {
+            return 1;
+        } else if (distinct <= 1 << 16) {
+            return 2;
+        } else {
+            return 4;
+        }
+    }
+
+    /** Suffix of binary table files. */
+    static final String SUFFIX = ".dbb";
+
+    /** First four bytes of every binary table file ("DB61"). */
+    private static final int MAGIC = 0x44423631;
+    /** Version of the format written, the latest one read. */
+    private static final int VERSION = 2;
+    /** Size of the output buffer. */
+    private static final int BUFFER_SIZE = 1 << 16;
+}
@@ -0,0 +1,205 @@
+package db61b;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/** Breaks the characters read from a Reader into the potential tokens of
+ *  db61b (see Tokenizer.Lexer) by hand, a character at a time, rather
+ *  than with regular expressions.  Characters are read in blocks into a
+ *  buffer, and each token is made into a String by a single copy out of
+ *  it; tokens of one character are shared Strings.  Reads block only
+ *  when a token cannot be completed without more input, so that an
+ *  interactive user sees prompts at the same points as before.
+ *
+ *  The tokens are exactly those of the regular expression
+ *
+ *      [<>!]?=  |  '[^,'\n\r]*'?  |  [A-Za-z_]\w*  |  \d+
+ *          |  /\*.*?\* /  |  /\*.*  |  \r?\n  |  \S
+ *
+ *  (where the comment may span lines, and the blank in its closing
+ *  delimiter is not part of it), taking the first alternative that
+ *  matches, and skipping other whitespace.
+ *  @author Matthew Brennan
+ */
+class CharLexer implements Tokenizer.Lexer {
+
+    /** A lexer reading characters from INPUT. */
+    CharLexer(Reader input) {
+        _input = input;
+        _chars = new char[BUFFER_SIZE];
+    }
+
+    @Override
+    public String next() {
+        while (true) {
+            int c = charAt(0);
+            switch (c) {
+            case -1:
+                return null;
+            case ' ': case '\t': case '\u000b': case '\f':
+                _pos += 1;
+                continue;
+            case '\r':
+                if (charAt(1) == '\n') {
+                    return token(2);
+                }
+                _pos += 1;
+                continue;
+            case '<': case '>': case '!':
+                return token(charAt(1) == '=' ? 2 : 1);
+            case '\'':
+                return token(literalLength());
+            case '/':
+                return token(charAt(1) == '*' ? commentLength() : 1);
+            default:
+                break;
+            }
+            if (isIdentifierStart(c)) {
+                int n;
+                for (n = 1; isWordChar(charAt(n)); n += 1) {
+                    /* Empty */
+                }
+                return token(n);
+            } else if (isDigit(c)) {
+                int n;
+                for (n = 1; isDigit(charAt(n)); n += 1) {
+                    /* Empty */
+                }
+                return token(n);
+            } else if (Character.isHighSurrogate((char) c)
+                       && Character.isLowSurrogate((char) charAt(1))) {
+                return token(2);
+            }
+            return token(1);
+        }
+    }
+
+    /** Return true iff C may begin an identifier. */
+    static boolean isIdentifierStart(int c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '_';
+    }
+
+    /** Return true iff C may continue an identifier. */
+    static boolean isWordChar(int c) {
+        return isIdentifierStart(c) || isDigit(c);
+    }
+
+    /** Return true iff C is a decimal digit. */
+    static boolean isDigit(int c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /** Return the length of the literal (terminated or not) starting at
+     *  the next character, which is a quote. */
+    private int literalLength() {
+        int n;
+        n = 1;
+        while (true) {
+            int c = charAt(n);
+            if (c == '\'') {
+                return n + 1;
+            } else if (c == -1 || c == ',' || c == '\n' || c == '\r') {
+                return n;
+            }
+            n += 1;
+        }
+    }
+
+    /** Return the length of the comment starting at the next two
+     *  characters, "/*": through the first following "*" "/", or to the
+     *  end of input if there is none. */
+    private int commentLength() {
+        int n;
+        n = 2;
+        while (true) {
+            int c = charAt(n);
+            if (c == -1) {
+                return n;
+            } else if (c == '*' && charAt(n + 1) == '/') {
+                return n + 2;
+            }
+            n += 1;
+        }
+    }
+
+    /** Return the next N characters as a String, and advance past
+     *  them. */
+    private String token(int n) {
+        String token;
+        char c = _chars[_pos];
+        if (n == 1 && c < ONE_CHAR.length) {
+            token = ONE_CHAR[c];
+        } else {
+            token = new String(_chars, _pos, n);
+        }
+        _pos += n;
+        return token;
+    }
+
+    /** Return the character K places past the next one, reading more
+     *  input if needed, or -1 if the input ends first. */
+    private int charAt(int k) {
+        while (_pos + k >= _end) {
+            if (!fill()) {
+                return -1;
+            }
+        }
+        return _chars[_pos + k];
+    }
+
+    /** Read at least one more character into _chars, first discarding
+     *  those already consumed or growing it, as needed to make room.
+     *  Return false if the input has ended.  As for a Scanner, an
+     *  IOException is treated as the end of the input. */
+    private boolean fill() {
+        if (_eof) {
+            return false;
+        }
+        if (_end == _chars.length) {
+            if (_pos > 0) {
+                System.arraycopy(_chars, _pos, _chars, 0, _end - _pos);
+                _end -= _pos;
+                _pos = 0;
+            } else {
+                _chars = Arrays.copyOf(_chars, 2 * _chars.length);
+            }
+        }
+        int n;
+        try {
+            n = _input.read(_chars, _end, _chars.length - _end);
+        } catch (IOException e) {
+            n = -1;
+        }
+        if (n <= 0) {
+            _eof = true;
+            return false;
+        }
+        _end += n;
+        return true;
+    }
+
+    /** Size of the initial buffer. */
+    private static final int BUFFER_SIZE = 1 << 13;
+
+    /** ONE_CHAR[c] is the one-character token c, for each ASCII c. */
+    private static final String[] ONE_CHAR = new String[128];
+
+    static {
+        for (char c = 0; c < ONE_CHAR.length; c += 1) {
+            ONE_CHAR[c] = String.valueOf(c).intern();
+        }
+    }
+
+    /** Source of my characters. */
+    private final Reader _input;
+    /** Buffered characters; those at _pos .. _end-1 are not yet
+     *  consumed. */
+    private char[] _chars;
+    /** Position in _chars of the next character. */
+    private int _pos;
+    /** End of the valid characters in _chars. */
+    private int _end;
+    /** True once _input has ended. */
+    private boolean _eof;
+}
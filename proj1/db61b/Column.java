@@ -20,6 +20,7 @@ class Column {
             _column = table.findColumn(name);
             if (_column != -1) {
                 _table = table;
+                _values = table.column(_column);
                 return;
             }
             _tableIndex += 1;
@@ -37,7 +38,42 @@ class Column {
      *  row.  It is assumed that all columns with the same name have
      *  the same value. */
     String getFrom(Integer... rows) {
-        return _table.get(rows[_tableIndex], _column);
+        return _values.get(rows[_tableIndex]);
+    }
+
+    /** Assuming that ROW1 and ROW2 are the indices of rows from my first
+     *  and second tables, return the value of my column from the
+     *  appropriate one.  Unlike getFrom, reads my column's values
+     *  directly, without boxing its arguments. */
+    String value(int row1, int row2) {
+        return _values.get(_tableIndex == 0 ? row1 : row2);
+    }
+
+    /** As for value(ROW1, ROW2), but return the code of the value in my
+     *  column's dictionary (see ValueList). */
+    int code(int row1, int row2) {
+        return _values.code(_tableIndex == 0 ? row1 : row2);
+    }
+
+    /** Return the table containing my column. */
+    Table table() {
+        return _table;
+    }
+
+    /** Return the values of my column. */
+    ValueList values() {
+        return _values;
+    }
+
+    /** Return the number of my column within its table. */
+    int column() {
+        return _column;
+    }
+
+    /** Return the index, among the tables I was created from, of the
+     *  table containing my column. */
+    int tableIndex() {
+        return _tableIndex;
     }
 
     /** Column name denoted by THIS. */
@@ -46,4 +82,6 @@ class Column {
     private Table _table;
     /** Index of the table and column from which to extract a value. */
     private int _tableIndex, _column;
+    /** The values of my column in _table. */
+    private ValueList _values;
 }
@@ -0,0 +1,124 @@
+package db61b;
+
+import java.util.Arrays;
+import java.util.function.IntBinaryOperator;
+
+import static db61b.Utils.*;
+
+/** A sorted secondary index on one column of a Table, as created by
+ *  a 'create index' statement.  It holds the numbers of the table's rows
+ *  in order of their values in the indexed column (rows with equal
+ *  values in increasing order of row number), so that the rows whose
+ *  values fall in any range are contiguous and can be found by binary
+ *  search.  Rows added to the table after the index was last used are
+ *  merged in when it is next used.  Rows are ordered and looked up by
+ *  comparing their values directly, so neither depends on the ranks of
+ *  the column's values (see ValueList.rank), which new values make
+ *  stale.
+ *  @author Matthew Brennan
+ */
+class ColumnIndex {
+
+    /** An index on VALUES, the values of a column of some Table. */
+    ColumnIndex(ValueList values) {
+        _values = values;
+        _sorted = new int[0];
+    }
+
+    /** Bring me up to date with any rows added to my column since I was
+     *  last used.  The new rows are sorted among themselves and merged
+     *  into the existing order, so a run of inserts between queries
+     *  costs one merge rather than one insertion each.  Readers of the
+     *  table may call this concurrently; they share one refresh. */
+    synchronized void refresh() {
+        int old = _sorted.length;
+        int n = _values.size();
+        if (old == n) {
+            return;
+        }
+        int[] added = new int[n - old];
+        for (int r = old; r < n; r += 1) {
+            added[r - old] = r;
+        }
+        IntBinaryOperator byRow = new IntBinaryOperator() {
+            @Override
+            public int applyAsInt(int r0, int r1) {
+                return compareRows(r0, r1);
+            }
+        };
+        sort(added, byRow);
+        _sorted = merge(_sorted, added, byRow);
+    }
+
+    /** Return the number of rows I index. */
+    int size() {
+        return _sorted.length;
+    }
+
+    /** Return the first position in my order whose value is not less
+     *  than VALUE, which must be a value of my column's type (else a
+     *  DBException is thrown). */
+    int lowerBound(String value) {
+        return bound(value, false);
+    }
+
+    /** Return the first position in my order whose value is greater
+     *  than VALUE, which must be a value of my column's type. */
+    int upperBound(String value) {
+        return bound(value, true);
+    }
+
+    /** Return the first position in my order whose value is greater
+     *  than VALUE, if UPPER, or not less than VALUE, otherwise.  If
+     *  VALUE is in my column, it is compared with my rows' values by
+     *  code, and otherwise as a value of my column's type. */
+    private int bound(String value, boolean upper) {
+        ColumnType type = _values.type();
+        value = type.check(value);
+        int code = _values.codeOf(value);
+        int[] sorted = _sorted;
+        int lo, hi;
+        lo = 0;
+        hi = sorted.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = code != -1
+                ? compareCodes(_values.code(sorted[mid]), code)
+                : type.compare(_values.get(sorted[mid]), value);
+            if (c < 0 || upper && c == 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /** Return the numbers of the rows at positions FROM .. TO-1 in my
+     *  order, in increasing order of row number. */
+    int[] rows(int from, int to) {
+        int[] rows = Arrays.copyOfRange(_sorted, from, to);
+        Arrays.sort(rows);
+        return rows;
+    }
+
+    /** Return <0, 0, or >0 depending on whether row R0 of my column
+     *  precedes, is, or follows row R1 in my order. */
+    private int compareRows(int r0, int r1) {
+        int c = compareCodes(_values.code(r0), _values.code(r1));
+        return c != 0 ? c : Integer.compare(r0, r1);
+    }
+
+    /** Return <0, 0, or >0 depending on whether the value of my column
+     *  whose code is C0 is less than, equal to, or greater than that
+     *  whose code is C1. */
+    private int compareCodes(int c0, int c1) {
+        return c0 == c1 ? 0 : ValueList.compare(_values, c0, _values, c1);
+    }
+
+    /** The values of the indexed column. */
+    private final ValueList _values;
+    /** The numbers of the rows I index, in order of their values.
+     *  Replaced, never changed, by refresh. */
+    private volatile int[] _sorted;
+}
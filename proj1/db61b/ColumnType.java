@@ -0,0 +1,96 @@
+package db61b;
+
+import static db61b.Utils.*;
+
+/** The types a column of a Table may be declared to have in a 'create
+ *  table' statement.  Values are always given and printed as strings,
+ *  but those of a numeric column must be numerals of its type, are
+ *  stored in a canonical form (so that '007' and '7' are the same int),
+ *  and are ordered numerically rather than lexicographically.  An
+ *  undeclared column is a string column.
+ *  @author Matthew Brennan
+ */
+enum ColumnType {
+    /** Any string, ordered lexicographically. */
+    STRING,
+    /** A 32-bit integer. */
+    INT,
+    /** A 64-bit integer. */
+    LONG,
+    /** A double-precision floating-point number. */
+    DOUBLE;
+
+    /** Return the type whose name is NAME (as in a 'create table'
+     *  statement or a .db file's header). */
+    static ColumnType forName(String name) {
+        for (ColumnType type : values()) {
+            if (type.toString().equals(name)) {
+                return type;
+            }
+        }
+        throw error("unknown column type: %s", name);
+    }
+
+    /** Return my name, as written in 'create table' statements. */
+    @Override
+    public String toString() {
+        return name().toLowerCase();
+    }
+
+    /** Return true iff my values are numbers. */
+    boolean numeric() {
+        return this != STRING;
+    }
+
+    /** Return true iff values of mine and of OTHER are ordered the same
+     *  way, and are equal just when their canonical forms are: both are
+     *  strings, both integers, or both doubles. */
+    boolean ordersLike(ColumnType other) {
+        return this == other
+            || (this == INT || this == LONG) && (other == INT || other == LONG);
+    }
+
+    /** Return the canonical form of VALUE as a value of mine, or null if
+     *  it is not one. */
+    String canonical(String value) {
+        try {
+            switch (this) {
+            case INT:
+                return Integer.toString(Integer.parseInt(value));
+            case LONG:
+                return Long.toString(Long.parseLong(value));
+            case DOUBLE:
+                return Double.toString(Double.parseDouble(value));
+            default:
+                return value;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /** Return the canonical form of VALUE as a value of mine, throwing a
+     *  DBException if it is not one. */
+    String check(String value) {
+        String result = canonical(value);
+        if (result == null) {
+            throw error("invalid %s value: '%s'", this, value);
+        }
+        return result;
+    }
+
+    /** Return <0, 0, or >0 depending on whether V0 is less than, equal
+     *  to, or greater than V1, both being canonical values of mine. */
+    int compare(String v0, String v1) {
+        switch (this) {
+        case INT:
+        case LONG:
+            return Long.compare(Long.parseLong(v0), Long.parseLong(v1));
+        case DOUBLE:
+            return Double.compare(Double.parseDouble(v0),
+                                  Double.parseDouble(v1));
+        default:
+            return v0.compareTo(v1);
+        }
+    }
+}
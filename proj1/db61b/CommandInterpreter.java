@@ -1,8 +1,9 @@
 package db61b;
 
 import java.io.PrintStream;
+import java.io.Reader;
 import java.util.ArrayList;
-import java.util.Scanner;
+import java.util.HashMap;
 import java.util.List;
 import static db61b.Utils.*;
 
@@ -112,10 +113,18 @@ class CommandInterpreter {
 
 
     /** A new CommandInterpreter executing commands read from INP, writing
-     *  prompts on PROMPTER, if it is non-null. */
-    CommandInterpreter(Scanner inp, PrintStream prompter) {
+     *  prompts on PROMPTER, if it is non-null, on a new, empty database. */
+    CommandInterpreter(Reader inp, PrintStream prompter) {
+        this(inp, prompter, new Database());
+    }
+
+    /** A new CommandInterpreter executing commands read from INP, writing
+     *  prompts on PROMPTER, if it is non-null, on DATABASE, which other
+     *  interpreters, possibly in other threads, may share. */
+    CommandInterpreter(Reader inp, PrintStream prompter, Database database) {
         _input = new Tokenizer(inp, prompter);
-        _database = new Database();
+        _database = database;
+        _prepared = new HashMap<>();
     }
 
     /** Parse and execute one statement from the token stream.  Return true
@@ -128,6 +137,15 @@ class CommandInterpreter {
         case "load":
             loadStatement();
             break;
+        case "explain":
+            explainStatement();
+            break;
+        case "prepare":
+            prepareStatement();
+            break;
+        case "execute":
+            executeStatement();
+            break;
         case "exit": case "quit":
             exitStatement();
             return false;
@@ -145,6 +163,12 @@ class CommandInterpreter {
         case "store":
             storeStatement();
             break;
+        case "stats":
+            statsStatement();
+            break;
+        case "show":
+            showStatement();
+            break;
         default:
             throw error("unrecognizable command");
         }
@@ -154,6 +178,10 @@ class CommandInterpreter {
     /** Parse and execute a create statement from the token stream. */
     void createStatement() {
         _input.next("create");
+        if (_input.nextIf("index")) {
+            indexDefinition();
+            return;
+        }
         _input.next("table");
         String name = name();
         Table table = tableDefinition();
@@ -161,6 +189,19 @@ class CommandInterpreter {
         _input.next(";");
     }
 
+    /** Parse and execute the remainder of a create index statement,
+     *  following "create index", from the token stream. */
+    void indexDefinition() {
+        String name = name();
+        _input.next("on");
+        Table table = tableName();
+        _input.next("(");
+        String column = columnName();
+        _input.next(")");
+        _input.next(";");
+        table.createIndex(name, column);
+    }
+
     /** Parse and execute an exit or quit statement. Actually does nothing
      *  except check syntax, since statement() handles the actual exiting. */
     void exitStatement() {
@@ -170,43 +211,58 @@ class CommandInterpreter {
         _input.next(";");
     }
 
-    /** Parse and execute an insert statement from the token stream. */
+    /** Parse and execute an insert statement from the token stream.  All
+     *  its rows are parsed before any is inserted, and are then inserted
+     *  as one batch (see Table.addAll), so that a statement with an
+     *  error inserts nothing. */
     void insertStatement() {
         _input.next("insert");
         _input.next("into");
+        String name = _input.peek();
         Table table = tableName();
         _input.next("values");
         int cols = table.columns();
 
-        String[] values = new String[cols];
-
+        ArrayList<String[]> rows = new ArrayList<>();
         while (true) {
+            String[] values = new String[cols];
             int k = 0;
             _input.next("(");
             while (!_input.nextIs(")")) {
+                if (k == cols) {
+                    throw error("too many values: %s has %d columns",
+                                name, cols);
+                }
                 values[k] = literal();
                 _input.nextIf(",");
                 k += 1;
             }
+            if (k < cols) {
+                throw error("too few values: %s has %d columns", name, cols);
+            }
 
             _input.next(")");
-            table.add(values);
+            rows.add(values);
             if (!_input.nextIf(",")) {
                 break;
             }
 
         }
         _input.next(";");
+        table.addAll(rows);
+        _database.cache().invalidate(name);
     }
 
     /** Parse and execute a load statement from the token stream. */
     void loadStatement() {
         _input.next("load");
         String name = name();
-        Table table1 = Table.readTable(name);
+        boolean binary = binaryClause();
+        Table table1 = binary ? Table.readBinaryTable(name)
+            : Table.readTable(name);
         _input.next(";");
         _database.put(name, table1);
-        System.out.printf("Loaded %s.db%n", name);
+        System.out.printf("Loaded %s.%s%n", name, binary ? "dbb" : "db");
     }
 
     /** Parse and execute a store statement from the token stream. */
@@ -214,41 +270,186 @@ class CommandInterpreter {
         _input.next("store");
         String name = _input.peek();
         Table table = tableName();
-        table.writeTable(name);
-        System.out.printf("Stored %s.db%n", name);
+        if (binaryClause()) {
+            table.writeBinaryTable(name);
+            System.out.printf("Stored %s.dbb%n", name);
+        } else {
+            table.writeTable(name);
+            System.out.printf("Stored %s.db%n", name);
+        }
         _input.next(";");
     }
 
+    /** Parse an optional "as binary" clause of a load or store statement
+     *  from the token stream, returning true iff it is present. */
+    boolean binaryClause() {
+        if (_input.nextIf("as")) {
+            _input.next("binary");
+            return true;
+        }
+        return false;
+    }
+
     /** Parse and execute a print statement from the token stream. */
     void printStatement() {
         _input.next("print");
         String name = _input.peek();
         Table table = tableName();
+        int limit = limitClause();
         _input.next(";");
         System.out.printf("Contents of %s:%n", name);
-        table.print();
+        table.print(limit);
     }
 
-    /** Parse and execute a select statement from the token stream. */
+    /** Parse and execute a select statement from the token stream.  The
+     *  result is taken from the database's cache of earlier results if
+     *  possible, and added to it otherwise. */
     void selectStatement() {
-        Table table = selectClause();
+        long version = _database.cache().version();
+        Select query = selectQuery();
+        int limit = limitClause();
         _input.next(";");
+        printResults(results(query, version), limit);
+    }
+
+    /** Print the first LIMIT rows (all, if LIMIT is negative) of TABLE,
+     *  the result of a select. */
+    void printResults(Table table, int limit) {
         System.out.printf("Search results:");
         System.out.println();
-        table.print();
+        table.print(limit);
+    }
+
+    /** Return the result of QUERY, which is taken from the database's
+     *  cache of earlier results if possible, and added to it otherwise.
+     *  VERSION is the version of the cache (see QueryCache.version) read
+     *  before QUERY's tables were looked up in the database, so that a
+     *  result from tables that have since been replaced or changed is
+     *  not cached. */
+    Table results(Select query, long version) {
+        QueryCache cache = _database.cache();
+        String key = query.key();
+        Table table = cache.get(key);
+        if (table == null) {
+            table = query.execute();
+            cache.put(key, table, query.tableNames(), version);
+        }
+        return table;
+    }
+
+    /** Parse a prepare statement: "prepare", a name, "as", and a select
+     *  clause whose conditions may compare columns with parameters, "?",
+     *  in place of literals.  The parsed select, with its conditions, is
+     *  kept under that name (replacing any earlier one) for execute
+     *  statements to run. */
+    void prepareStatement() {
+        _input.next("prepare");
+        String name = name();
+        _input.next("as");
+        Select query;
+        _parameters = 0;
+        try {
+            query = selectQuery();
+        } finally {
+            _parameters = -1;
+        }
+        _input.next(";");
+        _prepared.put(name, query);
+    }
+
+    /** Parse and execute an execute statement: "execute", the name of a
+     *  prepared select, a parenthesized list of literals, one for each of
+     *  its parameters in order, and an optional limit clause.  Prints the
+     *  results as for a select statement.  If any of its tables has been
+     *  replaced since the select was prepared, it is first rebound to the
+     *  current ones. */
+    void executeStatement() {
+        _input.next("execute");
+        String name = name();
+        Select query = _prepared.get(name);
+        if (query == null) {
+            throw error("unknown prepared statement: %s", name);
+        }
+        ArrayList<String> values = new ArrayList<>();
+        _input.next("(");
+        while (!_input.nextIs(")")) {
+            values.add(literal());
+            _input.nextIf(",");
+        }
+        _input.next(")");
+        int limit = limitClause();
+        _input.next(";");
+        if (values.size() != query.parameters()) {
+            throw error("%s takes %d values", name, query.parameters());
+        }
+        long version = _database.cache().version();
+        ArrayList<Table> tables = new ArrayList<>();
+        for (String tableName : query.tableNames()) {
+            Table table = _database.get(tableName);
+            if (table == null) {
+                throw error("unknown table: %s", tableName);
+            }
+            tables.add(table);
+        }
+        if (!tables.equals(query.tables())) {
+            query = query.rebind(tables);
+            _prepared.put(name, query);
+        }
+        query.bind(values.toArray(new String[values.size()]));
+        printResults(results(query, version), limit);
+    }
+
+    /** Parse and execute an explain statement: "explain" followed by a
+     *  select clause, which prints the steps the select would take
+     *  without running it, or "explain analyze" followed by a select
+     *  clause, which runs it and adds the numbers of rows consumed and
+     *  produced and the time taken by each step.  Neither uses or fills
+     *  the database's cache of results. */
+    void explainStatement() {
+        _input.next("explain");
+        boolean analyze = _input.nextIf("analyze");
+        Select query = selectQuery();
+        _input.next(";");
+        QueryPlan plan = new QueryPlan(query.tableNames(), analyze);
+        query.execute(plan);
+        plan.print(analyze);
+    }
+
+    /** Parse and execute a stats statement, which reports on the use of
+     *  the database's cache of select results. */
+    void statsStatement() {
+        _input.next("stats");
+        _input.next(";");
+        System.out.printf("Query cache: %s.%n", _database.cache().stats());
+    }
+
+    /** Parse and execute a show tables statement, which lists the names
+     *  of the tables in the database, in order ignoring case. */
+    void showStatement() {
+        _input.next("show");
+        _input.next("tables");
+        _input.next(";");
+        System.out.printf("Tables:%n");
+        for (String name : _database.names()) {
+            System.out.printf("  %s%n", name);
+        }
     }
 
     /** Parse and execute a table definition, returning the specified
-     *  table. */
+     *  table.  Each column name in a list of columns may be followed by
+     *  its type (see ColumnType); a column without one holds strings. */
     Table tableDefinition() {
         Table table;
         if (_input.nextIf("(")) {
             ArrayList<String> listColumns = new ArrayList<>();
-            listColumns.add(columnName());
-            while (_input.nextIf(",")) {
+            ArrayList<ColumnType> listTypes = new ArrayList<>();
+            do {
                 listColumns.add(columnName());
-            }
-            table = new Table(listColumns);
+                listTypes.add(_input.nextIs(Tokenizer.IDENTIFIER)
+                              ? ColumnType.forName(name())
+                              : ColumnType.STRING);
+            } while (_input.nextIf(","));
+            table = new Table(listColumns, listTypes);
             _input.next(")");
 
         } else {
@@ -262,26 +463,44 @@ class CommandInterpreter {
     /** Parse and execute a select clause from the token stream, returning the
      *  resulting table. */
     Table selectClause() {
+        return selectQuery().execute();
+    }
+
+    /** Parse a select clause from the token stream, returning it
+     *  unexecuted. */
+    Select selectQuery() {
         _input.next("select");
         List<String> titleList = new ArrayList<>();
+        List<String> nameList = new ArrayList<>();
+        List<Table> tableList = new ArrayList<>();
         List<Condition> conditionList;
-        Table table3;
         titleList.add(columnName());
         while (_input.nextIf(",")) {
             titleList.add(columnName());
         }
         _input.next("from");
-        Table table1 = tableName();
-        if (_input.nextIf(",")) {
-            Table table2 =  tableName();
-            conditionList = conditionClause(table1, table2);
-            table3 = table1.select(table2, titleList, conditionList);
-        } else {
-            conditionList = conditionClause(table1);
-            table3 = table1.select(titleList, conditionList);
-        }
-        return table3;
+        do {
+            nameList.add(_input.peek());
+            tableList.add(tableName());
+        } while (_input.nextIf(","));
+        conditionList =
+            conditionClause(tableList.toArray(new Table[tableList.size()]));
+        return new Select(titleList, nameList, tableList, conditionList);
+    }
 
+    /** Parse an optional limit clause from the token stream, returning
+     *  the number of rows it allows to be printed, or -1 if there is no
+     *  limit clause. */
+    int limitClause() {
+        if (!_input.nextIf("limit")) {
+            return -1;
+        }
+        String numeral = _input.next(Tokenizer.NUMBER);
+        try {
+            return Integer.parseInt(numeral);
+        } catch (NumberFormatException excp) {
+            throw error("limit too large: %s", numeral);
+        }
     }
 
     /** Parse and return a valid name (identifier) from the token stream. */
@@ -335,7 +554,13 @@ class CommandInterpreter {
     Condition condition(Table... tables) {
         Column col1 = new Column(columnName(), tables);
         String rel = _input.next();
-        if (!(_input.nextIs(Tokenizer.LITERAL))) {
+        if (_input.nextIf("?")) {
+            if (_parameters == -1) {
+                throw error("parameters are allowed only in prepare");
+            }
+            _parameters += 1;
+            return new Condition(col1, rel, _parameters - 1);
+        } else if (!(_input.nextIs(Tokenizer.LITERAL))) {
             String str1 = name();
             Column col2 = new Column(str1, tables);
             return new Condition(col1, rel, col2);
@@ -364,4 +589,9 @@ class CommandInterpreter {
     private Tokenizer _input;
     /** Database containing all tables. */
     private Database _database;
+    /** The selects prepared by prepare statements, by name. */
+    private HashMap<String, Select> _prepared;
+    /** While a prepare statement is parsed, the number of parameters
+     *  seen so far; otherwise -1. */
+    private int _parameters = -1;
 }
@@ -0,0 +1,326 @@
+package db61b;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/** A stress test of concurrent access to a Database: several threads
+ *  select from a table (directly, from the results of earlier selects,
+ *  and joined with another table) while others insert batches of rows
+ *  into it and replace the other table.  Each batch of inserted rows
+ *  must appear to readers all at once, and never tear a result.  The
+ *  same is tested with the threads executing statements through their
+ *  own CommandInterpreters on one shared Database.
+ *  @author Matthew Brennan
+ */
+class ConcurrencyTest {
+
+    /** Run the test for about MILLIS milliseconds, throwing an
+     *  AssertionError if any reader sees an inconsistent result. */
+    static void run(long millis) {
+        final Database db = new Database();
+        Table facts = new Table(new String[] { "id", "g" },
+                                new ColumnType[] { ColumnType.INT,
+                                                   ColumnType.STRING });
+        facts.createIndex("byGroup", "g");
+        db.put("facts", facts);
+        db.put("groups", groups(0));
+
+        final AtomicBoolean done = new AtomicBoolean();
+        ArrayList<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < WRITERS; w += 1) {
+            final int writer = w;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int next = writer * ROWS_PER_WRITER;
+                    int end = next + ROWS_PER_WRITER;
+                    while (!done.get() && next < end) {
+                        db.get("facts").addAll(batch(next));
+                        db.cache().invalidate("facts");
+                        next += BATCH;
+                    }
+                }
+            }));
+        }
+        threads.add(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int generation = 0;
+                while (!done.get()) {
+                    generation += 1;
+                    db.put("groups", groups(generation));
+                    Thread.yield();
+                }
+            }
+        }));
+        for (int r = 0; r < READERS; r += 1) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int last = 0;
+                    while (!done.get()) {
+                        last = check(db, last);
+                    }
+                }
+            }));
+        }
+
+        runThreads(threads, done, millis);
+        int size = db.get("facts").select(ALL, NONE).size();
+        expect(size % BATCH == 0 && size > 0, "final size %d", size);
+    }
+
+    /** Run a test like run's for about MILLIS milliseconds, but with
+     *  each thread inserting and selecting by executing statements with
+     *  its own CommandInterpreter, all sharing one Database, so that
+     *  selects go through its cache of results.  Each result, cached or
+     *  not, must reflect every insertion and replacement completed before
+     *  the select began.  Throws an AssertionError if any reader sees an
+     *  inconsistent or out-of-date result. */
+    static void runCached(long millis) {
+        final Database db = new Database();
+        execute(db, "create table facts (id int, g);"
+                + "create index byGroup on facts (g);");
+        db.put("groups", groups(0));
+
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicInteger inserted = new AtomicInteger();
+        final AtomicInteger generation = new AtomicInteger();
+        ArrayList<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < WRITERS; w += 1) {
+            final int writer = w;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int next = writer * ROWS_PER_WRITER;
+                    int end = next + ROWS_PER_WRITER;
+                    while (!done.get() && next < end) {
+                        execute(db, insertion(next));
+                        inserted.addAndGet(BATCH);
+                        next += BATCH;
+                    }
+                }
+            }));
+        }
+        threads.add(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!done.get()) {
+                    int next = generation.get() + 1;
+                    db.put("groups", groups(next));
+                    generation.set(next);
+                    Thread.yield();
+                }
+            }
+        }));
+        for (int r = 0; r < READERS; r += 1) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (!done.get()) {
+                        int rows = inserted.get();
+                        check(select(db, IN_GROUP), rows, 0);
+                        rows = inserted.get();
+                        int labeled = generation.get();
+                        check(select(db, LABELED), rows, labeled);
+                    }
+                }
+            }));
+        }
+
+        runThreads(threads, done, millis);
+        int size = db.get("facts").size();
+        expect(size % BATCH == 0 && size > 0, "final size %d", size);
+        Table some = select(db, IN_GROUP);
+        expect(some.size() * GROUPS == size, "cached %d of %d rows in a group",
+               some.size(), size);
+        Table labeled = select(db, LABELED);
+        expect(labeled.size() == some.size(), "cached join of %d rows has %d",
+               some.size(), labeled.size());
+        check(labeled, size, generation.get());
+    }
+
+    /** Start THREADS, and after about MILLIS milliseconds, set DONE and
+     *  wait for them to finish, which they must do once DONE is set.
+     *  Throws an AssertionError if any of them threw an exception. */
+    private static void runThreads(List<Thread> threads, AtomicBoolean done,
+                                   long millis) {
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (Thread thread : threads) {
+            thread.setUncaughtExceptionHandler(
+                new Thread.UncaughtExceptionHandler() {
+                    @Override
+                    public void uncaughtException(Thread t, Throwable e) {
+                        failure.compareAndSet(null, e);
+                        done.set(true);
+                    }
+                });
+            thread.start();
+        }
+        try {
+            Thread.sleep(millis);
+            done.set(true);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            throw new AssertionError("interrupted");
+        }
+        if (failure.get() != null) {
+            throw new AssertionError("concurrent access failed",
+                                     failure.get());
+        }
+    }
+
+    /** Select from DB's tables as a reader, checking that the results are
+     *  consistent with each other and with whole batches having been
+     *  inserted, and that there are at least LAST rows.  Return the
+     *  number of rows seen. */
+    private static int check(Database db, int last) {
+        Table facts = db.get("facts");
+        Table groups = db.get("groups");
+        Table[] locked = Table.lockRead(facts);
+        try {
+            Table all = facts.select(ALL, NONE);
+            int n = all.size();
+            expect(n % BATCH == 0, "saw %d rows, not whole batches", n);
+            expect(n >= last, "saw %d rows after %d", n, last);
+
+            List<Condition> inGroup = Arrays.asList(
+                new Condition(new Column("g", facts), "=", "g3"));
+            Table some = facts.select(ALL, inGroup);
+            expect(some.size() * GROUPS == n,
+                   "%d of %d rows in a group", some.size(), n);
+            Table ids = some.select(Arrays.asList("id"), NONE);
+            expect(ids.size() == some.size(),
+                   "view of %d rows has %d", some.size(), ids.size());
+            List<Condition> small = Arrays.asList(
+                new Condition(new Column("id", ids), "<", "1000"));
+            Table fewer = ids.select(Arrays.asList("id"), small);
+            expect(fewer.size() <= ids.size(), "view grew");
+
+            Table joined = facts.select(groups, Arrays.asList("id", "label"),
+                                        NONE);
+            expect(joined.size() == n, "join of %d rows has %d", n,
+                   joined.size());
+            return n;
+        } finally {
+            Table.unlock(locked);
+        }
+    }
+
+    /** Check that RESULT, selected by IN_GROUP or LABELED, is the part
+     *  in one group of whole batches of rows, at least ROWS rows in all,
+     *  and that any labels in it are all those of a single generation of
+     *  the groups table, no earlier than GENERATION. */
+    private static void check(Table result, int rows, int generation) {
+        int n = result.size();
+        expect(n % (BATCH / GROUPS) == 0, "saw %d rows, not whole batches",
+               n);
+        expect(n * GROUPS >= rows, "saw %d of %d rows in a group", n, rows);
+        int col = result.findColumn("label");
+        if (col == -1 || n == 0) {
+            return;
+        }
+        String label = result.get(0, col);
+        int seen = Integer.parseInt(label.substring(1, label.indexOf('.')));
+        expect(seen >= generation, "saw generation %d after %d", seen,
+               generation);
+        for (int row = 0; row < n; row += 1) {
+            expect(result.get(row, col).equals(label), "saw label %s, not %s",
+                   result.get(row, col), label);
+        }
+    }
+
+    /** Execute the statements in SCRIPT on DB with a new
+     *  CommandInterpreter. */
+    private static void execute(Database db, String script) {
+        CommandInterpreter interpreter =
+            new CommandInterpreter(new StringReader(script), null, db);
+        boolean more = true;
+        while (more) {
+            more = interpreter.statement();
+        }
+    }
+
+    /** Return the result of the select clause QUERY from DB, taken from
+     *  DB's cache when possible, as for a select statement executed with
+     *  a new CommandInterpreter. */
+    private static Table select(Database db, String query) {
+        CommandInterpreter interpreter =
+            new CommandInterpreter(new StringReader(query), null, db);
+        long version = db.cache().version();
+        return interpreter.results(interpreter.selectQuery(), version);
+    }
+
+    /** Return an insert statement adding the rows of batch(FIRST) to the
+     *  table facts. */
+    private static String insertion(int first) {
+        StringBuilder statement = new StringBuilder("insert into facts");
+        String sep = " values ";
+        for (String[] row : batch(first)) {
+            statement.append(String.format("%s('%s', '%s')", sep, row[0],
+                                           row[1]));
+            sep = ", ";
+        }
+        return statement.append(";").toString();
+    }
+
+    /** Return a batch of BATCH rows with ids FIRST and up, spread evenly
+     *  over the groups. */
+    private static List<String[]> batch(int first) {
+        ArrayList<String[]> rows = new ArrayList<>();
+        for (int i = 0; i < BATCH; i += 1) {
+            rows.add(new String[] { Integer.toString(first + i),
+                                    "g" + (i % GROUPS) });
+        }
+        return rows;
+    }
+
+    /** Return a table labeling each group, with labels distinguished by
+     *  GENERATION. */
+    private static Table groups(int generation) {
+        Table result = new Table(new String[] { "g", "label" });
+        for (int i = 0; i < GROUPS; i += 1) {
+            result.add(new String[] { "g" + i, "L" + generation + "." + i });
+        }
+        return result;
+    }
+
+    /** Throw an AssertionError with message String.format(FORMAT, ARGS)
+     *  unless COND. */
+    private static void expect(boolean cond, String format, Object... args) {
+        if (!cond) {
+            throw new AssertionError(String.format(format, args));
+        }
+    }
+
+    /** Number of threads inserting rows. */
+    private static final int WRITERS = 2;
+    /** Number of threads selecting rows. */
+    private static final int READERS = 4;
+    /** Rows inserted at once. */
+    private static final int BATCH = 100;
+    /** Most rows inserted by each writer. */
+    private static final int ROWS_PER_WRITER = 200000;
+    /** Number of distinct groups (values of g). */
+    private static final int GROUPS = 10;
+    /** The group selected by IN_GROUP and LABELED. */
+    private static final String GROUP = "3";
+    /** A select clause for the facts in one group. */
+    private static final String IN_GROUP =
+        "select id, g from facts where g = 'g" + GROUP + "'";
+    /** A select clause for the facts in one group, with their labels. */
+    private static final String LABELED =
+        "select id, label from facts, groups where g = 'g" + GROUP + "'";
+    /** Names of all the columns of the table of facts. */
+    private static final List<String> ALL = Arrays.asList("id", "g");
+    /** An empty list of conditions. */
+    private static final List<Condition> NONE = Collections.emptyList();
+}
@@ -1,7 +1,10 @@
 package db61b;
 
+import java.util.ArrayList;
 import java.util.List;
 
+import static db61b.Utils.*;
+
 /** Represents a single 'where' condition in a 'select' command.
  *  @author Matthew Brennan */
 class Condition {
@@ -13,45 +16,321 @@ class Condition {
         _col1 = col1;
         _col2 = col2;
         _relation = relation;
+        _op = relationCode(relation);
     }
 
     /** A Condition representing COL1 RELATION 'VAL2', where COL1 is
      *  a column designator, VAL2 is a literal value (without the
      *  quotes), and RELATION is one of the strings "<", ">", "<=",
-     *  ">=", "=", or "!=".
+     *  ">=", "=", or "!=".  VAL2 must be a value of COL1's type.
      */
     Condition(Column col1, String relation, String val2) {
         this(col1, relation, (Column) null);
+        col1.values().type().check(val2);
         _val2 = val2;
     }
 
+    /** A Condition representing COL1 RELATION ?, as in a prepared
+     *  statement, whose second operand is its parameter number PARAMETER:
+     *  a literal that is supplied, before each use, by bind. */
+    Condition(Column col1, String relation, int parameter) {
+        this(col1, relation, (Column) null);
+        _parameter = parameter;
+    }
+
+    /** Return the number of the parameter that is my second operand, or
+     *  -1 if I have none. */
+    int parameter() {
+        return _parameter;
+    }
+
+    /** Make VALUE, which must be a value of my first column's type, the
+     *  literal second operand of a Condition with a parameter. */
+    void bind(String value) {
+        _col1.values().type().check(value);
+        _val2 = value;
+        _boundDistinct = -1;
+    }
+
     /** Assuming that ROWS are row indices in the respective tables
      *  from which my columns are selected, returns the result of
      *  performing the test I denote. */
     boolean test(Integer... rows) {
-        String str1 = _col1.getFrom(rows);
-        int val;
+        return test(rows[0], rows.length > 1 ? rows[1] : rows[0]);
+    }
+
+    /** Assuming that ROW1 and ROW2 are row indices in the first and
+     *  second tables from which my columns are selected, returns the
+     *  result of performing the test I denote.  When my columns come
+     *  from a single table, ROW1 and ROW2 may both be the row to test.
+     *  Two columns are compared as numbers if both are numeric, and
+     *  otherwise as strings (see ValueList.compare). */
+    boolean test(int row1, int row2) {
+        if (_col2 == null) {
+            return testLiteral(_col1.code(row1, row2));
+        }
+        int c = ValueList.compare(_col1.values(), _col1.code(row1, row2),
+                                  _col2.values(), _col2.code(row1, row2));
+        switch (_op) {
+        case EQ:
+            return c == 0;
+        case NE:
+            return c != 0;
+        case LT:
+            return c < 0;
+        case LE:
+            return c <= 0;
+        case GT:
+            return c > 0;
+        default:
+            return c >= 0;
+        }
+    }
+
+    /** Return the result of my test on a row whose value in my first
+     *  column has code CODE, when my second operand is a literal.  The
+     *  literal is compared by its code or, for orderings, by the range of
+     *  ranks it bounds, so that no strings (or numbers) are compared per
+     *  row. */
+    private boolean testLiteral(int code) {
+        ValueList values = _col1.values();
+        if (values.distinct() != _boundDistinct) {
+            bindLiteral(values);
+        }
+        switch (_op) {
+        case EQ:
+            return code == _code2;
+        case NE:
+            return code != _code2;
+        case LT:
+            return values.rank(code) < _lowerRank2;
+        case LE:
+            return values.rank(code) < _upperRank2;
+        case GT:
+            return values.rank(code) >= _upperRank2;
+        default:
+            return values.rank(code) >= _lowerRank2;
+        }
+    }
+
+    /** Find the code and rank bounds of my literal operand among VALUES,
+     *  the values of my first column.  Since VALUES only ever gains new
+     *  distinct values, these stay valid until its number of distinct
+     *  values changes. */
+    private void bindLiteral(ValueList values) {
+        _boundDistinct = values.distinct();
+        _code2 = values.codeOf(_val2);
+        if (_op != EQ && _op != NE) {
+            _lowerRank2 = values.lowerRank(_val2);
+            _upperRank2 = values.upperRank(_val2);
+        }
+    }
+
+    /** Assuming that my columns all come from one table, remove from
+     *  ROWS[0 .. N-1] the numbers of the rows of that table that fail my
+     *  test, keeping the rest, in order, at the front of ROWS, and
+     *  return how many remain.  For a comparison with a literal, this
+     *  is a single branch-free loop over the column's codes or ranks,
+     *  which the compiler can keep tight; other conditions fall back to
+     *  test(int, int) on each row. */
+    int select(int[] rows, int n) {
+        int m;
+        m = 0;
         if (_col2 != null) {
-            val = str1.compareTo(_col2.getFrom(rows));
-        } else {
-            val = str1.compareTo(_val2);
+            for (int i = 0; i < n; i += 1) {
+                int r = rows[i];
+                rows[m] = r;
+                m += test(r, r) ? 1 : 0;
+            }
+            return m;
         }
-        switch (_relation) {
-        case ">":
-            return val > 0;
-        case "<":
-            return val < 0;
-        case "=":
-            return val == 0;
-        case ">=":
-            return val >= 0;
-        case "<=":
-            return val <= 0;
-        case "!=":
-            return val != 0;
+        ValueList values = _col1.values();
+        if (values.distinct() != _boundDistinct) {
+            bindLiteral(values);
+        }
+        int[] codes = values.codes();
+        if (_op == EQ || _op == NE) {
+            int code = _code2;
+            boolean equal = _op == EQ;
+            for (int i = 0; i < n; i += 1) {
+                int r = rows[i];
+                rows[m] = r;
+                m += (codes[r] == code) == equal ? 1 : 0;
+            }
+            return m;
+        }
+        int lo, hi;
+        switch (_op) {
+        case LT:
+            lo = 0;
+            hi = _lowerRank2;
+            break;
+        case LE:
+            lo = 0;
+            hi = _upperRank2;
+            break;
+        case GT:
+            lo = _upperRank2;
+            hi = Integer.MAX_VALUE;
+            break;
+        default:
+            lo = _lowerRank2;
+            hi = Integer.MAX_VALUE;
+            break;
+        }
+        int[] ranks = values.ranks();
+        for (int i = 0; i < n; i += 1) {
+            int r = rows[i];
+            int rank = ranks[codes[r]];
+            rows[m] = r;
+            m += (rank >= lo & rank < hi) ? 1 : 0;
+        }
+        return m;
+    }
 
+    /** Apply select(ROWS, N) for each of CONDITIONS in turn, returning
+     *  the number of rows at the front of ROWS that satisfy all of
+     *  them. */
+    static int select(Condition[] conditions, int[] rows, int n) {
+        for (Condition cond : conditions) {
+            if (n == 0) {
+                break;
+            }
+            n = cond.select(rows, n);
+        }
+        return n;
+    }
+
+    /** Bring up to date everything that test and select compute lazily
+     *  from the values of my columns: the binding of a literal operand
+     *  and the codes and ranks of my first column's values.  Afterwards, until
+     *  those values change, testing rows only reads shared state, so
+     *  several threads may test rows at once. */
+    void prepare() {
+        if (_col2 == null) {
+            ValueList values = _col1.values();
+            if (values.distinct() != _boundDistinct) {
+                bindLiteral(values);
+            }
+            values.codes();
+            values.ranks();
+        }
+    }
+
+    /** Apply prepare() to each of CONDITIONS. */
+    static void prepare(Condition[] conditions) {
+        for (Condition cond : conditions) {
+            cond.prepare();
+        }
+    }
+
+    /** Return the set of tables my columns come from, as a bit set in
+     *  which bit k is on iff I refer to a column of the kth table. */
+    int tables() {
+        int tables = 1 << _col1.tableIndex();
+        if (_col2 != null) {
+            tables |= 1 << _col2.tableIndex();
+        }
+        return tables;
+    }
+
+    /** Return true iff each of my columns is the name of a column of
+     *  one of TABLES. */
+    boolean appliesTo(Table... tables) {
+        return hasColumn(_col1.getName(), tables)
+            && (_col2 == null || hasColumn(_col2.getName(), tables));
+    }
+
+    /** Return true iff one of my columns is named NAME. */
+    boolean mentions(String name) {
+        return _col1.getName().equals(name)
+            || _col2 != null && _col2.getName().equals(name);
+    }
+
+    /** Return a Condition testing what I test, but on the first of TABLES
+     *  having each of my columns.  Each of my columns must be a column of
+     *  one of TABLES (see appliesTo). */
+    Condition rebind(Table... tables) {
+        Column col1 = new Column(_col1.getName(), tables);
+        if (_parameter != -1) {
+            Condition result = new Condition(col1, _relation, _parameter);
+            if (_val2 != null) {
+                result.bind(_val2);
+            }
+            return result;
+        } else if (_col2 == null) {
+            return new Condition(col1, _relation, _val2);
+        }
+        return new Condition(col1, _relation,
+                             new Column(_col2.getName(), tables));
+    }
+
+    /** Return an estimate of the fraction of rows that pass my test,
+     *  assuming that each distinct value of a column is equally common.
+     *  A literal is placed among a column's values by its rank; a
+     *  comparison of two columns for equality passes one row in as many
+     *  as the larger number of distinct values, and any other
+     *  comparison of two columns one row in three. */
+    double selectivity() {
+        double distinct1 = Math.max(1, _col1.values().distinct());
+        if (_col2 != null) {
+            double distinct2 = Math.max(1, _col2.values().distinct());
+            double equal = 1.0 / Math.max(distinct1, distinct2);
+            switch (_op) {
+            case EQ:
+                return equal;
+            case NE:
+                return 1.0 - equal;
+            default:
+                return 1.0 / 3;
+            }
+        }
+        ValueList values = _col1.values();
+        switch (_op) {
+        case EQ:
+            return values.codeOf(_val2) == -1 ? 0.0 : 1.0 / distinct1;
+        case NE:
+            return values.codeOf(_val2) == -1 ? 1.0 : 1.0 - 1.0 / distinct1;
+        case LT:
+            return values.lowerRank(_val2) / distinct1;
+        case LE:
+            return values.upperRank(_val2) / distinct1;
+        case GT:
+            return 1.0 - values.upperRank(_val2) / distinct1;
+        default:
+            return 1.0 - values.lowerRank(_val2) / distinct1;
+        }
+    }
+
+    /** Return the number, within its table, of the column I compare with
+     *  a literal, if I am a comparison that a ColumnIndex on that column
+     *  can answer (any relation but !=).  Otherwise return -1. */
+    int indexableColumn() {
+        if (_col2 != null || _op == NE) {
+            return -1;
+        }
+        return _col1.column();
+    }
+
+    /** Assuming that INDEX is up to date and indexes indexableColumn(),
+     *  return the range of positions in INDEX holding exactly the rows
+     *  that satisfy me, as the array {FROM, TO} (TO exclusive). */
+    int[] span(ColumnIndex index) {
+        switch (_op) {
+        case EQ:
+            return new int[] { index.lowerBound(_val2),
+                               index.upperBound(_val2) };
+        case LT:
+            return new int[] { 0, index.lowerBound(_val2) };
+        case LE:
+            return new int[] { 0, index.upperBound(_val2) };
+        case GT:
+            return new int[] { index.upperBound(_val2), index.size() };
+        case GE:
+            return new int[] { index.lowerBound(_val2), index.size() };
+        default:
+            throw new IllegalStateException("relation cannot use index");
         }
-        return false;
     }
 
     /** Return true iff ROWS satisfies all CONDITIONS. */
@@ -64,11 +343,112 @@ class Condition {
         return true;
     }
 
+    /** Return true iff ROW1 and ROW2 satisfy all CONDITIONS, as for
+     *  test(int, int). */
+    static boolean test(Condition[] conditions, int row1, int row2) {
+        for (Condition cond : conditions) {
+            if (!cond.test(row1, row2)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Return those of CONDITIONS (which may be null) that refer to
+     *  exactly the set of tables TABLES (see tables()), as an array for
+     *  evaluation by test(Condition[], int, int). */
+    static Condition[] compile(List<Condition> conditions, int tables) {
+        ArrayList<Condition> result = new ArrayList<>();
+        if (conditions != null) {
+            for (Condition cond : conditions) {
+                if (cond.tables() == tables) {
+                    result.add(cond);
+                }
+            }
+        }
+        return result.toArray(new Condition[result.size()]);
+    }
+
+    /** Return my text in the form a where clause would give it, as
+     *  in "Lastname >= 'C'" or "SID = SID", or "SID = ?" for an unbound
+     *  parameter. */
+    @Override
+    public String toString() {
+        if (_col2 == null && _val2 == null) {
+            return String.format("%s %s ?", _col1.getName(), _relation);
+        } else if (_col2 == null) {
+            return String.format("%s %s '%s'", _col1.getName(), _relation,
+                                 _val2);
+        }
+        return String.format("%s %s %s", _col1.getName(), _relation,
+                             _col2.getName());
+    }
+
+    /** Return the texts of CONDITIONS (see toString), joined by
+     *  "and". */
+    static String text(Condition[] conditions) {
+        StringBuilder text = new StringBuilder();
+        for (Condition cond : conditions) {
+            if (text.length() > 0) {
+                text.append(" and ");
+            }
+            text.append(cond);
+        }
+        return text.toString();
+    }
+
+    /** Return true iff NAME is the name of a column of one of TABLES. */
+    private static boolean hasColumn(String name, Table... tables) {
+        for (Table table : tables) {
+            if (table.findColumn(name) != -1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Return the code (EQ, NE, ...) for the relation symbol RELATION. */
+    private static int relationCode(String relation) {
+        switch (relation) {
+        case "=":
+            return EQ;
+        case "!=":
+            return NE;
+        case "<":
+            return LT;
+        case "<=":
+            return LE;
+        case ">":
+            return GT;
+        case ">=":
+            return GE;
+        default:
+            throw error("unknown relation: %s", relation);
+        }
+    }
+
+    /** Codes for the relations, resolved once when I am created. */
+    private static final int EQ = 0, NE = 1, LT = 2, LE = 3, GT = 4, GE = 5;
+
     /** The operands of this condition.  _col2 is null if the second operand
      *  is a literal. */
     private Column _col1, _col2;
-    /** Second operand, if literal (otherwise null). */
+    /** Second operand, if literal (otherwise null, as it also is for a
+     *  parameter not yet bound). */
     private String _val2;
+    /** Number of the parameter that is my second operand, or -1. */
+    private int _parameter = -1;
     /** the relation needed in constructor. */
     private String _relation;
+    /** The code for _relation. */
+    private final int _op;
+    /** When my second operand is a literal: the number of distinct values
+     *  my first column had when _code2, _lowerRank2, and _upperRank2 were
+     *  computed, or -1 if they never have been. */
+    private int _boundDistinct = -1;
+    /** Code of _val2 in my first column, or -1 if it does not occur. */
+    private int _code2;
+    /** Number of distinct values of my first column less than _val2, and
+     *  less than or equal to it. */
+    private int _lowerRank2, _upperRank2;
 }
@@ -1,36 +1,107 @@
 package db61b;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
-/** A collection of Tables, indexed by name.
+/** A collection of Tables, indexed by name.  Tables may be looked up,
+ *  added, and replaced by several threads at once.  Table names are not
+ *  case-sensitive: a table may be referred to by its name in any mix of
+ *  cases, and is listed under the spelling with which it was last put.
  *  @author Matthew Brennan */
 class Database {
-    /** A new Database as a collection of tables */
-    private HashMap<String, Table> _tableNames;
+    /** The tables of this database, each with its name, keyed by the
+     *  folded form of that name (see fold). */
+    private ConcurrentHashMap<String, Entry> _tables;
+    /** Cached results of selects from my tables. */
+    private QueryCache _cache;
     /** An empty database. */
     public Database() {
-        _tableNames = new HashMap<String, Table>();
+        _tables = new ConcurrentHashMap<String, Entry>();
+        _cache = new QueryCache(QUERY_CACHE_SIZE);
     }
 
-    /** Return the Table whose name is NAME stored in this database, or null
-     *  if there is no such table. */
+    /** Return the Table whose name is NAME, ignoring case, stored in this
+     *  database, or null if there is no such table. */
     public Table get(String name) {
-        for (String key: _tableNames.keySet()) {
-            if (key.equals(name)) {
-                return _tableNames.get(key);
-            }
-        }
-        return null;
+        Entry entry = _tables.get(fold(name));
+        return entry == null ? null : entry._table;
     }
 
-    /** Set or replace the table named NAME in THIS to TABLE.  TABLE and
-     *  NAME must not be null, and NAME must be a valid name for a table. */
+    /** Set or replace the table named NAME, ignoring case, in THIS to
+     *  TABLE.  TABLE and NAME must not be null, and NAME must be a valid
+     *  name for a table. */
     public void put(String name, Table table) {
         if (name == null || table == null) {
             throw new IllegalArgumentException("null argument");
         }
-        _tableNames.put(name, table);
+        _tables.put(fold(name), new Entry(name, table));
+        _cache.invalidate(name);
+    }
+
+    /** Return the names of my tables, in order ignoring case. */
+    List<String> names() {
+        ArrayList<String> keys = new ArrayList<>(_tables.keySet());
+        Collections.sort(keys);
+        ArrayList<String> names = new ArrayList<>();
+        for (String key : keys) {
+            Entry entry = _tables.get(key);
+            if (entry != null) {
+                names.add(entry._name);
+            }
+        }
+        return names;
+    }
+
+    /** Return the cache of results of selects from my tables.  Whoever
+     *  changes the contents of one of my tables must invalidate its
+     *  results there; put does so itself. */
+    QueryCache cache() {
+        return _cache;
+    }
+
+    /** Return NAME in the form used to look tables up, so that names
+     *  differing only in case denote the same table.  Names are ASCII
+     *  identifiers (see Tokenizer), so only ASCII letters are folded;
+     *  NAME itself is returned if it has no upper-case letters. */
+    static String fold(String name) {
+        int n = name.length();
+        int i;
+        for (i = 0; i < n; i += 1) {
+            char c = name.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                break;
+            }
+        }
+        if (i == n) {
+            return name;
+        }
+        char[] chars = name.toCharArray();
+        for (; i < n; i += 1) {
+            if (chars[i] >= 'A' && chars[i] <= 'Z') {
+                chars[i] += 'a' - 'A';
+            }
+        }
+        return new String(chars);
     }
 
+    /** A table and its name. */
+    private static class Entry {
+        /** The table TABLE, named NAME. */
+        Entry(String name, Table table) {
+            _name = name;
+            _table = table;
+        }
+
+        /** The name, as given to put. */
+        private final String _name;
+        /** The table. */
+        private final Table _table;
+    }
 
+    /** Number of select results cached.  Set by the system property
+     *  db61b.queryCacheSize. */
+    static final int QUERY_CACHE_SIZE =
+        Integer.getInteger("db61b.queryCacheSize", 64);
 }
@@ -0,0 +1,317 @@
+package db61b;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+import static db61b.Utils.*;
+
+/** Sorts the rows of a Table on some of its columns (its key), using
+ *  no more than a fixed number of rows' worth of memory.  The rows are
+ *  sorted in runs of at most that many rows; if there is more than one
+ *  run, each is written to a temporary file in the format of a .db file
+ *  (see Table.writeTable), with the row's number as an extra last
+ *  column, and the runs are then merged as they are read back.
+ *  @author Matthew Brennan
+ */
+class ExternalSort {
+
+    /** A sorter for the rows ROWS of TABLE on its columns KEY, holding at
+     *  most RUNSIZE rows in memory. */
+    ExternalSort(Table table, int[] rows, int[] key, int runSize) {
+        _table = table;
+        _rows = rows;
+        _key = key;
+        _keyValues = new ValueList[key.length];
+        _types = new ColumnType[key.length];
+        for (int i = 0; i < key.length; i += 1) {
+            _keyValues[i] = table.column(key[i]);
+            _types[i] = _keyValues[i].type();
+        }
+        _runSize = Math.max(1, runSize);
+    }
+
+    /** Return a Cursor over my rows in order of their keys.  Rows with
+     *  equal keys come out in their order in the list I was given. */
+    Cursor open() {
+        int n = _rows.length;
+        if (n <= _runSize) {
+            return new ArrayCursor(sortRun(0, n));
+        }
+        ArrayList<File> runs = new ArrayList<>();
+        try {
+            for (int start = 0; start < n; start += _runSize) {
+                runs.add(writeRun(sortRun(start,
+                                          Math.min(n, start + _runSize))));
+            }
+            return new MergeCursor(runs, _types);
+        } catch (IOException e) {
+            for (File run : runs) {
+                run.delete();
+            }
+            throw error("could not spill sorted run: %s", e.getMessage());
+        }
+    }
+
+    /** Return the numbers of my rows at positions START .. END-1 in my
+     *  list of rows, sorted by key.  Values are compared by rank (see
+     *  ValueList.rank), which orders them as compareKeys does. */
+    private Integer[] sortRun(int start, int end) {
+        Integer[] rows = new Integer[end - start];
+        for (int e = start; e < end; e += 1) {
+            rows[e - start] = _rows[e];
+        }
+        Arrays.sort(rows, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer r0, Integer r1) {
+                for (ValueList values : _keyValues) {
+                    int c = Integer.compare(values.rank(values.code(r0)),
+                                            values.rank(values.code(r1)));
+                    if (c != 0) {
+                        return c;
+                    }
+                }
+                return 0;
+            }
+        });
+        return rows;
+    }
+
+    /** Write the key values and row numbers of ROWS, in order, to a new
+     *  temporary file, and return the file. */
+    private File writeRun(Integer[] rows) throws IOException {
+        File run = File.createTempFile("db61b-run", ".db");
+        run.deleteOnExit();
+        BufferedWriter output = new BufferedWriter(new FileWriter(run));
+        try {
+            for (int k : _key) {
+                output.write(_table.getTitle(k));
+                output.write(',');
+            }
+            output.write(ROW_TITLE);
+            output.newLine();
+            for (int r : rows) {
+                for (ValueList values : _keyValues) {
+                    output.write(values.get(r));
+                    output.write(',');
+                }
+                output.write(Integer.toString(r));
+                output.newLine();
+            }
+        } finally {
+            output.close();
+        }
+        return run;
+    }
+
+    /** Return <0, 0, or >0 depending on whether KEY0 is less than, equal
+     *  to, or greater than KEY1, compared column by column, column i
+     *  holding canonical values of type TYPES[i]. */
+    static int compareKeys(ColumnType[] types, String[] key0,
+                           String[] key1) {
+        for (int i = 0; i < key0.length; i += 1) {
+            int c = types[i].compare(key0[i], key1[i]);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    /** A position in a sequence of rows sorted by key.  A Cursor starts
+     *  before its first row. */
+    abstract static class Cursor {
+        /** Move to the next row, returning false if there is none. */
+        abstract boolean advance();
+
+        /** Return the key values of the current row. */
+        abstract String[] key();
+
+        /** Return the number of the current row. */
+        abstract int row();
+
+        /** Release any files I hold. */
+        void close() {
+        }
+    }
+
+    /** A Cursor over a single run held in memory. */
+    private class ArrayCursor extends Cursor {
+        /** A Cursor over SORTED, which are row numbers in order. */
+        ArrayCursor(Integer[] sorted) {
+            _sorted = sorted;
+            _pos = -1;
+            _current = new String[_key.length];
+        }
+
+        @Override
+        boolean advance() {
+            _pos += 1;
+            if (_pos >= _sorted.length) {
+                return false;
+            }
+            for (int i = 0; i < _key.length; i += 1) {
+                _current[i] = _keyValues[i].get(_sorted[_pos]);
+            }
+            return true;
+        }
+
+        @Override
+        String[] key() {
+            return _current;
+        }
+
+        @Override
+        int row() {
+            return _sorted[_pos];
+        }
+
+        /** The sorted rows. */
+        private final Integer[] _sorted;
+        /** Index of the current row in _sorted. */
+        private int _pos;
+        /** Key of the current row. */
+        private final String[] _current;
+    }
+
+    /** One spilled run being read back during a merge. */
+    private static class Run {
+        /** A reader for RUN, whose keys have KEYSIZE columns. */
+        Run(File run, int keySize) throws IOException {
+            _file = run;
+            _keySize = keySize;
+            _input = new BufferedReader(new FileReader(run));
+            if (_input.readLine() == null) {
+                throw new IOException("missing header in sorted run");
+            }
+        }
+
+        /** Read the next row of the run, returning false at its end. */
+        boolean advance() throws IOException {
+            String line = _input.readLine();
+            if (line == null) {
+                return false;
+            }
+            String[] fields = line.split(",", -1);
+            if (fields.length != _keySize + 1) {
+                throw new IOException("malformed sorted run");
+            }
+            _key = Arrays.copyOf(fields, _keySize);
+            _row = Integer.parseInt(fields[_keySize]);
+            return true;
+        }
+
+        /** Close and delete my file. */
+        void close() {
+            try {
+                _input.close();
+            } catch (IOException e) {
+                /* Ignore: the file is deleted regardless. */
+            }
+            _file.delete();
+        }
+
+        /** The file holding this run. */
+        private final File _file;
+        /** Number of key columns. */
+        private final int _keySize;
+        /** Reader for _file. */
+        private final BufferedReader _input;
+        /** Key of the current row. */
+        private String[] _key;
+        /** Number of the current row. */
+        private int _row;
+    }
+
+    /** A Cursor that merges several spilled runs. */
+    private static class MergeCursor extends Cursor {
+        /** A Cursor merging the sorted runs in RUNS, whose keys have
+         *  columns of types TYPES. */
+        MergeCursor(ArrayList<File> runs, final ColumnType[] types)
+            throws IOException {
+            _runs = new ArrayList<>();
+            _queue = new PriorityQueue<>(runs.size(), new Comparator<Run>() {
+                @Override
+                public int compare(Run r0, Run r1) {
+                    int c = compareKeys(types, r0._key, r1._key);
+                    return c != 0 ? c : Integer.compare(r0._row, r1._row);
+                }
+            });
+            try {
+                for (File file : runs) {
+                    Run run = new Run(file, types.length);
+                    _runs.add(run);
+                    if (run.advance()) {
+                        _queue.add(run);
+                    }
+                }
+            } catch (IOException e) {
+                close();
+                for (File file : runs) {
+                    file.delete();
+                }
+                throw e;
+            }
+        }
+
+        @Override
+        boolean advance() {
+            try {
+                if (_current != null && _current.advance()) {
+                    _queue.add(_current);
+                }
+            } catch (IOException e) {
+                throw error("could not read sorted run: %s", e.getMessage());
+            }
+            _current = _queue.poll();
+            return _current != null;
+        }
+
+        @Override
+        String[] key() {
+            return _current._key;
+        }
+
+        @Override
+        int row() {
+            return _current._row;
+        }
+
+        @Override
+        void close() {
+            for (Run run : _runs) {
+                run.close();
+            }
+        }
+
+        /** All my runs. */
+        private final ArrayList<Run> _runs;
+        /** Runs with rows remaining, other than _current, by next key. */
+        private final PriorityQueue<Run> _queue;
+        /** The run holding the current row, or null before the first. */
+        private Run _current;
+    }
+
+    /** Title of the row-number column in spilled runs. */
+    private static final String ROW_TITLE = "_row";
+
+    /** The table being sorted. */
+    private final Table _table;
+    /** The rows of _table to sort. */
+    private final int[] _rows;
+    /** The columns of _table on which to sort. */
+    private final int[] _key;
+    /** _keyValues[i] holds the values of column _key[i] of _table. */
+    private final ValueList[] _keyValues;
+    /** _types[i] is the type of column _key[i] of _table. */
+    private final ColumnType[] _types;
+    /** Maximum number of rows in one run. */
+    private final int _runSize;
+}
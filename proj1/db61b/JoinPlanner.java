@@ -0,0 +1,232 @@
+package db61b;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Carries out a select from three or more tables as a sequence of joins
+ *  of two tables (see Table.select), choosing the order of the joins to
+ *  keep the intermediate results small.  The rows of a select from
+ *  several tables are those of the natural join of all of them, which
+ *  is the same whatever the order, so any order gives the same result.
+ *
+ *  The size of the join of any set of the tables is estimated from
+ *  their numbers of rows, the selectivity of the conditions on each
+ *  alone (see Condition.selectivity), and the numbers of distinct values
+ *  in the columns they share: a column shared by several tables divides
+ *  the product of their sizes by all but the smallest of its numbers of
+ *  distinct values among them.  The order chosen, found by dynamic
+ *  programming over the sets of tables, is the one whose intermediate
+ *  results have the least total estimated size.  Each join then chooses
+ *  its own algorithm from the actual sizes of its inputs.
+ *
+ *  Each condition is applied at the first join whose inputs have all its
+ *  columns, which applies conditions on one table to that table before
+ *  it is joined.  Intermediate results keep only the columns that later
+ *  joins, conditions, or the final result need.
+ *  @author Matthew Brennan
+ */
+class JoinPlanner {
+
+    /** A planner for the select of the columns named COLUMNS from the
+     *  tables TABLES, whose names are TABLENAMES, in rows that satisfy
+     *  CONDITIONS, whose columns refer to TABLES. */
+    JoinPlanner(List<String> columns, List<String> tableNames,
+                List<Table> tables, List<Condition> conditions) {
+        _columns = columns;
+        _tableNames = tableNames;
+        _tables = tables;
+        _conditions = conditions;
+    }
+
+    /** Return the order in which to join my tables, as their indices in
+     *  my list of tables: the order whose intermediate results have the
+     *  least total estimated size.  More than MAX_PLANNED tables are
+     *  joined in the order given. */
+    int[] order() {
+        int n = _tables.size();
+        if (n > MAX_PLANNED) {
+            int[] order = new int[n];
+            for (int t = 0; t < n; t += 1) {
+                order[t] = t;
+            }
+            return order;
+        }
+        double[] rows = filteredRows();
+        double[] size = new double[1 << n];
+        double[] cost = new double[1 << n];
+        int[] last = new int[1 << n];
+        for (int set = 1; set < 1 << n; set += 1) {
+            size[set] = estimate(set, rows);
+            if (Integer.bitCount(set) == 1) {
+                last[set] = Integer.numberOfTrailingZeros(set);
+                continue;
+            }
+            cost[set] = Double.POSITIVE_INFINITY;
+            for (int t = 0; t < n; t += 1) {
+                int rest = set & ~(1 << t);
+                if (rest != set && cost[rest] + size[set] < cost[set]) {
+                    cost[set] = cost[rest] + size[set];
+                    last[set] = t;
+                }
+            }
+        }
+        int[] order = new int[n];
+        int set = (1 << n) - 1;
+        for (int i = n - 1; i >= 0; i -= 1) {
+            order[i] = last[set];
+            set &= ~(1 << order[i]);
+        }
+        return order;
+    }
+
+    /** Run the select, recording its steps in PLAN, and return the
+     *  resulting table (empty if PLAN does not execute). */
+    Table execute(QueryPlan plan) {
+        int[] order = order();
+        int n = order.length;
+        boolean[] applied = new boolean[_conditions.size()];
+        int start = plan.size();
+        Table left = _tables.get(order[0]);
+        String leftName = _tableNames.get(order[0]);
+        for (int i = 1; i < n; i += 1) {
+            Table right = _tables.get(order[i]);
+            List<Condition> conditions = new ArrayList<>();
+            for (int c = 0; c < applied.length; c += 1) {
+                Condition cond = _conditions.get(c);
+                if (!applied[c] && cond.appliesTo(left, right)) {
+                    conditions.add(cond.rebind(left, right));
+                    applied[c] = true;
+                }
+            }
+            List<String> columns = i == n - 1 ? _columns
+                : neededColumns(left, right, order, i, applied);
+            QueryPlan step =
+                plan.step(Arrays.asList(leftName, _tableNames.get(order[i])),
+                          n - 1 - i, start);
+            left = left.select(right, columns, conditions, step);
+            leftName = null;
+        }
+        return left;
+    }
+
+    /** Return the columns of the join of LEFT and RIGHT, the inputs of
+     *  step STEP of a join of my tables in order ORDER, that later steps
+     *  need, given that APPLIED tells which of my conditions have been
+     *  applied.  Always returns at least one column. */
+    private List<String> neededColumns(Table left, Table right, int[] order,
+                                       int step, boolean[] applied) {
+        ArrayList<String> needed = new ArrayList<>();
+        ArrayList<String> all = new ArrayList<>();
+        for (Table input : new Table[] { left, right }) {
+            for (int k = 0; k < input.columns(); k += 1) {
+                String title = input.getTitle(k);
+                if (all.contains(title)) {
+                    continue;
+                }
+                all.add(title);
+                if (_columns.contains(title)
+                    || usedLater(title, order, step, applied)) {
+                    needed.add(title);
+                }
+            }
+        }
+        if (needed.isEmpty()) {
+            needed.add(all.get(0));
+        }
+        return needed;
+    }
+
+    /** Return true iff the column named TITLE is a column of one of the
+     *  tables joined after step STEP of order ORDER, or of one of my
+     *  conditions not yet applied, according to APPLIED. */
+    private boolean usedLater(String title, int[] order, int step,
+                              boolean[] applied) {
+        for (int i = step + 1; i < order.length; i += 1) {
+            if (_tables.get(order[i]).findColumn(title) != -1) {
+                return true;
+            }
+        }
+        for (int c = 0; c < applied.length; c += 1) {
+            if (!applied[c] && _conditions.get(c).mentions(title)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Return the estimated number of rows of each of my tables that
+     *  satisfy the conditions on it alone. */
+    private double[] filteredRows() {
+        double[] rows = new double[_tables.size()];
+        for (int t = 0; t < rows.length; t += 1) {
+            rows[t] = _tables.get(t).size();
+        }
+        for (Condition cond : _conditions) {
+            int tables = cond.tables();
+            if (Integer.bitCount(tables) == 1) {
+                int t = Integer.numberOfTrailingZeros(tables);
+                rows[t] *= cond.selectivity();
+            }
+        }
+        return rows;
+    }
+
+    /** Return the estimated number of rows in the join of the set SET of
+     *  my tables (bit t on for table t), where ROWS[t] is the estimated
+     *  number of rows of table t after its own conditions. */
+    private double estimate(int set, double[] rows) {
+        double result = 1.0;
+        ArrayList<String> seen = new ArrayList<>();
+        for (int t = 0; t < _tables.size(); t += 1) {
+            if ((set & (1 << t)) == 0) {
+                continue;
+            }
+            result *= rows[t];
+            Table table = _tables.get(t);
+            for (int k = 0; k < table.columns(); k += 1) {
+                String title = table.getTitle(k);
+                if (seen.contains(title)) {
+                    continue;
+                }
+                seen.add(title);
+                result /= sharedDistinct(set, title, rows);
+            }
+        }
+        return result;
+    }
+
+    /** Return the product of all but the smallest of the numbers of
+     *  distinct values of the column named TITLE in those of the set SET
+     *  of my tables that have it, where ROWS[t] bounds the number for
+     *  table t.  Returns 1 if at most one table has the column. */
+    private double sharedDistinct(int set, String title, double[] rows) {
+        double product = 1.0;
+        double smallest = Double.POSITIVE_INFINITY;
+        for (int t = 0; t < _tables.size(); t += 1) {
+            Table table = _tables.get(t);
+            int k = table.findColumn(title);
+            if ((set & (1 << t)) == 0 || k == -1) {
+                continue;
+            }
+            double distinct =
+                Math.max(1.0, Math.min(table.column(k).distinct(), rows[t]));
+            product *= distinct;
+            smallest = Math.min(smallest, distinct);
+        }
+        return product / smallest;
+    }
+
+    /** Largest number of tables whose join order is planned.  Planning
+     *  takes time and space exponential in the number of tables. */
+    static final int MAX_PLANNED = 12;
+
+    /** Names of the selected columns, in order. */
+    private final List<String> _columns;
+    /** Names of the tables selected from. */
+    private final List<String> _tableNames;
+    /** The tables selected from. */
+    private final List<Table> _tables;
+    /** The conditions on selected rows, referring to _tables. */
+    private final List<Condition> _conditions;
+}
@@ -1,6 +1,6 @@
 package db61b;
 
-import java.util.Scanner;
+import java.io.InputStreamReader;
 
 /** The main program for db61b.
  *  @author P. N. Hilfinger
@@ -18,9 +18,9 @@ public class Main {
 
         Database db = new Database();
 
-        Scanner input = new Scanner(System.in);
+        InputStreamReader input = new InputStreamReader(System.in);
         CommandInterpreter interpreter =
-            new CommandInterpreter(input, System.out);
+            new CommandInterpreter(input, System.out, db);
 
         while (true) {
             try {
@@ -0,0 +1,119 @@
+package db61b;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** A cache of the results of recent select statements, keyed on their
+ *  normalized text (see Select.key).  It holds at most a fixed number of
+ *  results, discarding the least recently used when full.  Since a result
+ *  depends on the contents of the tables it was selected from, any
+ *  change to one of those tables must be reported with invalidate,
+ *  which discards every result that depends on it.  As in a Database,
+ *  table names are not case-sensitive.  A cache may be used
+ *  by several threads at once.  Since a result might be selected while
+ *  one of its tables is changing or being replaced, results are cached
+ *  only if no table was invalidated between looking up their tables
+ *  and computing them (see version).
+ *  @author Matthew Brennan
+ */
+class QueryCache {
+
+    /** An empty cache holding at most CAPACITY results. */
+    QueryCache(int capacity) {
+        _capacity = capacity;
+        _entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> e) {
+                return size() > _capacity;
+            }
+        };
+    }
+
+    /** Return the cached result of the query whose key is KEY, or null if
+     *  there is none, counting a hit or a miss accordingly. */
+    synchronized Table get(String key) {
+        Entry entry = _entries.get(key);
+        if (entry == null) {
+            _misses += 1;
+            return null;
+        }
+        _hits += 1;
+        return entry._result;
+    }
+
+    /** Cache RESULT as the result of the query whose key is KEY, which
+     *  selects from the tables named TABLES, unless some table has been
+     *  invalidated since version() returned VERSION, which must have been
+     *  before the tables RESULT was computed from were looked up (by
+     *  name, in a Database).  RESULT must not be changed afterwards. */
+    synchronized void put(String key, Table result, List<String> tables,
+                          long version) {
+        if (_capacity > 0 && version == _version) {
+            ArrayList<String> folded = new ArrayList<>();
+            for (String table : tables) {
+                folded.add(Database.fold(table));
+            }
+            _entries.put(key, new Entry(result, folded));
+        }
+    }
+
+    /** Discard every cached result selected from the table named
+     *  TABLE, ignoring case. */
+    synchronized void invalidate(String table) {
+        _version += 1;
+        table = Database.fold(table);
+        Iterator<Entry> entries = _entries.values().iterator();
+        while (entries.hasNext()) {
+            if (entries.next()._tables.contains(table)) {
+                entries.remove();
+                _invalidations += 1;
+            }
+        }
+    }
+
+    /** Return the number of invalidations so far, to be passed to put
+     *  with the result of a query whose tables were looked up after it
+     *  was returned. */
+    synchronized long version() {
+        return _version;
+    }
+
+    /** Return a one-line summary of my use: hits, misses, invalidated
+     *  results, and size. */
+    synchronized String stats() {
+        return String.format("%d hits, %d misses, %d invalidated,"
+                             + " %d of %d cached", _hits, _misses,
+                             _invalidations, _entries.size(), _capacity);
+    }
+
+    /** A cached result. */
+    private static class Entry {
+        /** A cached RESULT, selected from the tables named TABLES. */
+        Entry(Table result, List<String> tables) {
+            _result = result;
+            _tables = tables;
+        }
+
+        /** The result table. */
+        private final Table _result;
+        /** Folded names (see Database.fold) of the tables it was
+         *  selected from. */
+        private final List<String> _tables;
+    }
+
+    /** Maximum number of cached results. */
+    private final int _capacity;
+    /** Cached results by key, from least to most recently used. */
+    private final LinkedHashMap<String, Entry> _entries;
+    /** Number of lookups that found a result. */
+    private int _hits;
+    /** Number of lookups that found none. */
+    private int _misses;
+    /** Number of results discarded by invalidate. */
+    private int _invalidations;
+    /** Number of calls to invalidate. */
+    private long _version;
+}
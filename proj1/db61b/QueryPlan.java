@@ -0,0 +1,146 @@
+package db61b;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** A record of how a select is carried out: a tree of operators (scans,
+ *  filters, joins, and projections), listed parent first, each with the
+ *  numbers of rows it consumed and produced and the time it took.
+ *  Table.select adds operators as it decides on them.  A QueryPlan made
+ *  only to explain a select does not run it (see executes), and so
+ *  records its decisions without any numbers of rows or times; those
+ *  that depend on numbers of rows are then made on estimates.
+ *  @author Matthew Brennan
+ */
+class QueryPlan {
+
+    /** An empty plan for a select from the tables named TABLENAMES, which
+     *  is run iff EXECUTE. */
+    QueryPlan(List<String> tableNames, boolean execute) {
+        this(tableNames, execute, new ArrayList<>(), 0, -1);
+    }
+
+    /** A plan for a select from the tables named TABLENAMES, which is run
+     *  iff EXECUTE, adding to OPERATORS, with depths offset by DEPTH, and
+     *  inserting operators starting at position POSITION, or at the end
+     *  if POSITION is -1. */
+    private QueryPlan(List<String> tableNames, boolean execute,
+                      ArrayList<Operator> operators, int depth,
+                      int position) {
+        _tableNames = tableNames;
+        _execute = execute;
+        _operators = operators;
+        _depth = depth;
+        _position = position;
+    }
+
+    /** Return a plan for one step of the select I describe: a select from
+     *  the tables named TABLENAMES, whose operators go among mine, with
+     *  their depths increased by DEPTH, inserted starting at POSITION (a
+     *  value of size()).  A null table name denotes the result of an
+     *  earlier step, whose scan is not shown, since the earlier step
+     *  appears instead.  Steps that feed later ones may thus be recorded
+     *  first yet appear beneath them. */
+    QueryPlan step(List<String> tableNames, int depth, int position) {
+        return new QueryPlan(tableNames, _execute, _operators,
+                             _depth + depth, position);
+    }
+
+    /** Return the number of operators I have. */
+    int size() {
+        return _operators.size();
+    }
+
+    /** Return true iff the select I describe is to be run. */
+    boolean executes() {
+        return _execute;
+    }
+
+    /** Return the name of the Kth table selected from (numbering from
+     *  0), or null if it is the result of an earlier step (see step). */
+    String tableName(int k) {
+        return _tableNames.get(k);
+    }
+
+    /** Add an operator at DEPTH in my tree (0 for the root), described by
+     *  DESCRIPTION, and return its number. */
+    int add(int depth, String description) {
+        Operator op = new Operator(_depth + depth, description);
+        if (_position == -1) {
+            _operators.add(op);
+            return _operators.size() - 1;
+        }
+        _operators.add(_position, op);
+        _position += 1;
+        return _position - 1;
+    }
+
+    /** Replace the description of operator OP by DESCRIPTION, for
+     *  operators whose details are settled only after their inputs. */
+    void describe(int op, String description) {
+        _operators.get(op)._description = description;
+    }
+
+    /** Record that operator OP, started when System.nanoTime() was START,
+     *  has finished, having consumed ROWSIN rows and produced ROWSOUT. */
+    void done(int op, long rowsIn, long rowsOut, long start) {
+        Operator operator = _operators.get(op);
+        operator._rowsIn = rowsIn;
+        operator._rowsOut = rowsOut;
+        operator._nanos = System.nanoTime() - start;
+        operator._done = true;
+    }
+
+    /** Print my operators on the standard output, one per line and
+     *  indented by depth, followed, if ANALYZE, by their numbers of rows
+     *  and times. */
+    void print(boolean analyze) {
+        System.out.println("Query plan:");
+        StringBuilder line = new StringBuilder();
+        for (Operator op : _operators) {
+            line.setLength(0);
+            for (int d = 0; d <= op._depth; d += 1) {
+                line.append("  ");
+            }
+            line.append(op._description);
+            if (analyze && op._done) {
+                line.append(String.format("  [rows %d -> %d, %.3f ms]",
+                                          op._rowsIn, op._rowsOut,
+                                          op._nanos / 1e6));
+            }
+            System.out.println(line);
+        }
+    }
+
+    /** One step of a plan. */
+    private static class Operator {
+        /** An operator at DEPTH described by DESCRIPTION. */
+        Operator(int depth, String description) {
+            _depth = depth;
+            _description = description;
+        }
+
+        /** Depth in the tree. */
+        private final int _depth;
+        /** What the operator does. */
+        private String _description;
+        /** True iff the operator has run. */
+        private boolean _done;
+        /** Numbers of rows consumed and produced. */
+        private long _rowsIn, _rowsOut;
+        /** Time taken, in nanoseconds. */
+        private long _nanos;
+    }
+
+    /** Names of the tables selected from. */
+    private final List<String> _tableNames;
+    /** True iff the select is to be run. */
+    private final boolean _execute;
+    /** My operators, parent first. */
+    private final ArrayList<Operator> _operators;
+    /** Amount added to the depth of each operator I add. */
+    private final int _depth;
+    /** Position at which to insert the next operator, or -1 to add it at
+     *  the end. */
+    private int _position;
+}
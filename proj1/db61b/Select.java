@@ -0,0 +1,137 @@
+package db61b;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static db61b.Utils.*;
+
+/** A parsed select clause: the columns to select, the tables to select
+ *  them from, and the conditions the selected rows must satisfy.  Parsing
+ *  a clause into a Select before running it lets the same query be
+ *  recognized when it recurs (see key and QueryCache).
+ *  @author Matthew Brennan
+ */
+class Select {
+
+    /** A query selecting the columns named COLUMNS from the tables
+     *  TABLES, whose names are TABLENAMES, in rows that satisfy all of
+     *  CONDITIONS.  There is at least one table. */
+    Select(List<String> columns, List<String> tableNames,
+           List<Table> tables, List<Condition> conditions) {
+        _columns = columns;
+        _tableNames = tableNames;
+        _tables = tables;
+        _conditions = conditions;
+    }
+
+    /** Run me and return the resulting table.  Selects from more than two
+     *  tables are planned by a JoinPlanner. */
+    Table execute() {
+        return execute(new QueryPlan(_tableNames, true));
+    }
+
+    /** Run me if PLAN executes, recording the steps taken in PLAN, and
+     *  return the resulting table (empty if PLAN does not execute).  All
+     *  my tables are locked for reading throughout, so that a join of
+     *  several sees each as of a single moment. */
+    Table execute(QueryPlan plan) {
+        Table[] locked =
+            Table.lockRead(_tables.toArray(new Table[_tables.size()]));
+        try {
+            if (_tables.size() == 1) {
+                return _tables.get(0).select(_columns, _conditions, plan);
+            } else if (_tables.size() == 2) {
+                return _tables.get(0).select(_tables.get(1), _columns,
+                                             _conditions, plan);
+            }
+            return new JoinPlanner(_columns, _tableNames, _tables,
+                                   _conditions).execute(plan);
+        } finally {
+            Table.unlock(locked);
+        }
+    }
+
+    /** Return the number of parameters (see Condition.parameter) in my
+     *  conditions, which are numbered from 0. */
+    int parameters() {
+        int n;
+        n = 0;
+        for (Condition cond : _conditions) {
+            n = Math.max(n, cond.parameter() + 1);
+        }
+        return n;
+    }
+
+    /** Bind parameter p of my conditions to VALUES[p], for each p.  There
+     *  must be one value per parameter. */
+    void bind(String... values) {
+        for (Condition cond : _conditions) {
+            if (cond.parameter() != -1) {
+                cond.bind(values[cond.parameter()]);
+            }
+        }
+    }
+
+    /** Return a Select like me, but selecting from TABLES, which take the
+     *  place of my tables (as after they have been reloaded), with any
+     *  bound parameters kept.  Each of my conditions must refer to a
+     *  column of TABLES. */
+    Select rebind(List<Table> tables) {
+        Table[] tableArray = tables.toArray(new Table[tables.size()]);
+        ArrayList<Condition> conditions = new ArrayList<>();
+        for (Condition cond : _conditions) {
+            if (!cond.appliesTo(tableArray)) {
+                throw error("unknown column in condition: %s", cond);
+            }
+            conditions.add(cond.rebind(tableArray));
+        }
+        return new Select(_columns, _tableNames, tables, conditions);
+    }
+
+    /** Return the tables I select from. */
+    List<Table> tables() {
+        return _tables;
+    }
+
+    /** Return the names of the tables I select from. */
+    List<String> tableNames() {
+        return _tableNames;
+    }
+
+    /** Return a normalized text of me, equal for any two Selects that
+     *  necessarily produce the same rows from the same tables.  Since
+     *  conditions are conjoined, their order does not matter, and they
+     *  appear sorted; the order of columns and tables, which determines
+     *  the result's columns and how names resolve, is kept.  Table names,
+     *  which are not case-sensitive, appear folded (see Database.fold). */
+    String key() {
+        ArrayList<String> conditions = new ArrayList<>();
+        for (Condition cond : _conditions) {
+            conditions.add(cond.toString());
+        }
+        Collections.sort(conditions);
+        StringBuilder key = new StringBuilder("select ");
+        key.append(String.join(", ", _columns));
+        key.append(" from ");
+        ArrayList<String> tables = new ArrayList<>();
+        for (String name : _tableNames) {
+            tables.add(Database.fold(name));
+        }
+        key.append(String.join(", ", tables));
+        if (!conditions.isEmpty()) {
+            key.append(" where ");
+            key.append(String.join(" and ", conditions));
+        }
+        return key.toString();
+    }
+
+    /** Names of the selected columns, in order. */
+    private final List<String> _columns;
+    /** Names of the tables selected from. */
+    private final List<String> _tableNames;
+    /** The tables selected from. */
+    private final List<Table> _tables;
+    /** The conditions on selected rows. */
+    private final List<Condition> _conditions;
+}
@@ -2,23 +2,54 @@ package db61b;
 
 
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static db61b.Utils.*;
 
 /** A single table in a database.
+ *
+ *  A Table may be read by several threads at once while others change
+ *  it.  Each Table has a read/write lock: the methods that read a whole
+ *  table (select, print, and the writing of files) hold read locks for
+ *  their duration, and those that add rows or indexes hold its write
+ *  lock.  A table made by a select has columns that are views of its
+ *  sources' (see ValueList.view), so locking it also locks those sources
+ *  (its bases) for reading.  Locks on several tables are always acquired
+ *  in the order in which the tables were created, so that threads
+ *  locking overlapping sets of tables cannot deadlock.  Single-cell
+ *  access (get, column) takes no lock: callers that need it to be
+ *  consistent with concurrent writers must hold a read lock (see
+ *  lockRead).
  *  @author Matthew Brennan
  */
 class Table {
     /** A new Table whose columns are given by COLUMNTITLES, which may
-     *  not contain duplicate names. */
+     *  not contain duplicate names, and hold strings. */
     Table(String[] columnTitles) {
+        this(columnTitles, (ColumnType[]) null);
+    }
+
+    /** A new Table whose columns are given by COLUMNTITLES, which may
+     *  not contain duplicate names, and hold values of types TYPES (all
+     *  strings, if TYPES is null). */
+    Table(String[] columnTitles, ColumnType[] types) {
         if (columnTitles.length == 0) {
             throw error("table must have at least one column");
         }
@@ -36,6 +67,44 @@ class Table {
 
         _titles = columnTitles;
         _columns = new ValueList[_rowSize];
+        for (int k = 0; k < _rowSize; k += 1) {
+            _columns[k] = new ValueList(types == null ? ColumnType.STRING
+                                        : types[k]);
+        }
+        _index = emptyIndex(INITIAL_INDEX_SIZE);
+        _rowHashes = new int[INITIAL_INDEX_SIZE / 2];
+        _columnIndexes = new ColumnIndex[_rowSize];
+        _indexNames = new HashMap<>();
+    }
+
+    /** A new Table whose columns are given by COLUMNTITLES and hold the
+     *  values COLUMNS, which must all have the same size.  Rows that
+     *  duplicate earlier ones are dropped. */
+    Table(String[] columnTitles, ValueList[] columns) {
+        this(columnTitles);
+        System.arraycopy(columns, 0, _columns, 0, _rowSize);
+        _size = columns[0].size();
+        reindex();
+    }
+
+    /** A new Table whose columns are given by COLUMNTITLES and hold the
+     *  values COLUMNS, which must all have the same size and hold no two
+     *  equal rows, HASHES[r] being the hash of row r (see rowHash). */
+    private Table(String[] columnTitles, ValueList[] columns,
+                  int[] hashes) {
+        this(columnTitles);
+        System.arraycopy(columns, 0, _columns, 0, _rowSize);
+        _size = columns[0].size();
+        int capacity = INITIAL_INDEX_SIZE;
+        while (capacity < 2 * _size) {
+            capacity *= 2;
+        }
+        _index = emptyIndex(capacity);
+        _rowHashes = Arrays.copyOf(hashes,
+                                   Math.max(_size, INITIAL_INDEX_SIZE / 2));
+        for (int r = 0; r < _size; r += 1) {
+            _index[slotFor(_rowHashes[r])] = r;
+        }
     }
 
     /** A new Table whose columns are give by COLUMNTITLES. */
@@ -43,6 +112,13 @@ class Table {
         this(columnTitles.toArray(new String[columnTitles.size()]));
     }
 
+    /** A new Table whose columns are given by COLUMNTITLES and hold
+     *  values of types TYPES. */
+    Table(List<String> columnTitles, List<ColumnType> types) {
+        this(columnTitles.toArray(new String[columnTitles.size()]),
+             types.toArray(new ColumnType[types.size()]));
+    }
+
     /** Return the number of columns in this table. */
     public int columns() {
         return _rowSize;
@@ -53,6 +129,12 @@ class Table {
         return _titles[k];
     }
 
+    /** Return the type of the values of the Kth column.  Requires
+     *  0 <= K < columns(). */
+    ColumnType getType(int k) {
+        return _columns[k].type();
+    }
+
     /** Return the number of the column whose title is TITLE, or -1 if
      *  there isn't one. */
     public int findColumn(String title) {
@@ -73,66 +155,99 @@ class Table {
     }
 
     /** Return the value of column number COL (0 <= COL < columns())
-     *  of record number ROW (0 <= ROW < size()). */
+     *  of record number ROW (0 <= ROW < size()).  Checks its arguments,
+     *  throwing a DBException if they are out of range; inner loops
+     *  instead read the ValueLists given by column(int), or use
+     *  Column.value(int, int). */
     public String get(int row, int col) {
-        try {
-            if (size() >= row && columns() >= col) {
-                ValueList v = _columns[col];
-                return v.get(row);
-            } else {
-                throw new IndexOutOfBoundsException();
-            }
-
-        } catch (IndexOutOfBoundsException excp) {
+        if (row < 0 || row >= _size || col < 0 || col >= _rowSize) {
             throw error("invalid row or column");
         }
+        return _columns[col].get(row);
+    }
 
+    /** Return the values of my column number COL (0 <= COL < columns()).
+     *  The same ValueList is returned for the life of this table. */
+    ValueList column(int col) {
+        return _columns[col];
     }
 
     /** Add a new row whose column values are VALUES to me if no equal
      *  row already exists.  Return true if anything was added,
-     *  false otherwise. */
+     *  false otherwise.  Throws a DBException, adding nothing, if a value
+     *  is not of its column's type. */
     public boolean add(String[] values) {
         if (values.length != _rowSize) {
             return false;
         }
-        if (this.size() == 0) {
-            for (int m = 0; m < this.columns(); m += 1) {
-                _columns[m] = new ValueList();
-                _columns[m].add(values[m]);
+        for (int k = 0; k < _rowSize; k += 1) {
+            _columns[k].type().check(values[k]);
+        }
+        Table[] locked = lockWrite();
+        try {
+            int[] codes = new int[_rowSize];
+            boolean known;
+            known = true;
+            for (int k = 0; k < _rowSize && known; k += 1) {
+                codes[k] = _columns[k].codeOf(values[k]);
+                known = codes[k] != -1;
             }
-            _size += 1;
+            if (known && findRow(codes, codesHash(codes)) != -1) {
+                return false;
+            }
+            append(values);
+            indexRow(_size - 1, rowHash(_size - 1));
             return true;
+        } finally {
+            unlock(locked);
         }
-        for (int i = 0; i < _size; i += 1) {
-            int amountCorrect = 0;
-            for (int r = 0; r < _rowSize; r += 1) {
-                if (this.get(i, r).equals(values[r])) {
-                    amountCorrect += 1;
-                }
-                if (amountCorrect == _rowSize) {
-                    return false;
-                }
-            }
+    }
 
+    /** Add those of ROWS, each of which holds one value per column, that
+     *  equal neither one of my rows nor an earlier one of ROWS, and return
+     *  how many were added.  This is the batch counterpart of
+     *  add(String[]).  Every row is checked (for its length and the types
+     *  of its values) before any is added, so that a DBException leaves
+     *  me unchanged.  The rows are then appended together, with space
+     *  for them and their index entries allocated once, and duplicates
+     *  are dropped in one pass as they are indexed (as for reindex),
+     *  comparing codes rather than strings. */
+    int addAll(List<String[]> rows) {
+        String[][] batch = new String[rows.size()][];
+        for (int i = 0; i < batch.length; i += 1) {
+            String[] row = rows.get(i);
+            if (row.length != _rowSize) {
+                throw error("wrong number of values: expected %d, got %d",
+                            _rowSize, row.length);
+            }
+            batch[i] = new String[_rowSize];
+            for (int k = 0; k < _rowSize; k += 1) {
+                batch[i][k] = _columns[k].type().check(row[k]);
+            }
         }
-        for (int p = 0; p < _rowSize; p += 1) {
-            _columns[p].add(values[p]);
+        Table[] locked = lockWrite();
+        try {
+            int first = _size;
+            reserveIndex(_size + batch.length);
+            appendRows(batch, batch.length);
+            indexRows(first);
+            return _size - first;
+        } finally {
+            unlock(locked);
         }
-        _size += 1;
-        return true;
-
     }
+
     /** Add a new row whose column values are extracted by COLUMNS from
      *  the rows indexed by ROWS, if no equal row already exists.
      *  Return true if anything was added, false otherwise. See
      *  Column.getFrom(Integer...) for a description of how Columns
      *  extract values. */
     public boolean add(List<Column> columns, Integer... rows) {
+        int row1 = rows[0];
+        int row2 = rows.length > 1 ? rows[1] : row1;
         String[] rowtoAdd = new String[_rowSize];
         for (int i = 0; i < _rowSize; i += 1) {
-            String val = columns.get(i).getFrom(rows);
-            rowtoAdd[i] = val;
+            rowtoAdd[i] = columns.get(i).value(row1, row2);
         }
         return this.add(rowtoAdd);
     }
@@ -140,77 +255,92 @@ class Table {
     /** Read the contents of the file NAME.db, and return as a Table.
      *  Format errors in the .db file cause a DBException. */
     static Table readTable(String name) {
-        BufferedReader input;
-        Table table;
-        input = null;
+        return new TableReader(name).read();
+    }
+
+    /** Read the contents of the binary file NAME.dbb written by
+     *  writeBinaryTable, and return as a Table.  Format errors in the
+     *  file cause a DBException. */
+    static Table readBinaryTable(String name) {
+        return BinaryTable.read(name);
+    }
+
+    /** Write the contents of TABLE into the binary file NAME.dbb (see
+     *  BinaryTable).  Any I/O errors cause a DBException. */
+    void writeBinaryTable(String name) {
+        Table[] locked = lockRead(this);
         try {
-            input = new BufferedReader(new FileReader(name + ".db"));
-            String header = input.readLine();
-            if (header == null) {
-                throw error("missing header in DB file");
-            }
-            String[] columnNames = header.split(",");
-            table = new Table(columnNames);
-            String item;
-            while ((item = input.readLine()) != null) {
-                String[] info = item.split((","));
-
-                if (info.length != columnNames.length) {
-                    throw error("lengths of data and _rowsize do not match");
-                }
-                table.add(info);
-            }
-        } catch (FileNotFoundException e) {
-            throw error("could not find %s.db", name);
-        } catch (IOException e) {
-            throw error("problem reading from %s.db", name);
+            BinaryTable.write(this, name);
         } finally {
-            if (input != null) {
-                try {
-                    input.close();
-                } catch (IOException e) {
-                    throw error("the input is not null");
-                }
-            }
+            unlock(locked);
         }
-        return table;
     }
 
     /** Write the contents of TABLE into the file NAME.db. Any I/O errors
-     *  cause a DBException. */
+     *  cause a DBException.  The header gives the title of each column,
+     *  followed, if the column is not of strings, by a colon and its
+     *  type, as in "Year:int".  The contents go first to a temporary file
+     *  in the same directory, which is synced to disk and then replaces
+     *  NAME.db in one step (see Utils.replaceFile), so that a failure part
+     *  way through, or a crash of the system, leaves either the previous
+     *  NAME.db or the complete new one. */
     void writeTable(String name) {
-        PrintStream output;
-        output = null;
+        Table[] locked = lockRead(this);
         try {
-            output = new PrintStream(name + ".db");
-            if (_size == 0) {
-                throw error("no rows have been added to _columns");
-            }
+            writeText(name);
+        } finally {
+            unlock(locked);
+        }
+    }
+
+    /** Write my contents into the file NAME.db, as for writeTable, while
+     *  locked for reading. */
+    private void writeText(String name) {
+        File temp = null;
+        BufferedWriter output = null;
+        try {
+            temp = tempFileFor(name + ".db");
+            FileOutputStream file = new FileOutputStream(temp);
+            output = new BufferedWriter(
+                new OutputStreamWriter(file, StandardCharsets.UTF_8),
+                WRITE_BUFFER_SIZE);
             for (int k = 0; k < _titles.length; k += 1) {
-                if (k != _titles.length - 1) {
-                    output.print(getTitle(k) + ",");
-                } else {
-                    output.print(getTitle(k));
+                if (k > 0) {
+                    output.write(',');
+                }
+                output.write(getTitle(k));
+                if (getType(k) != ColumnType.STRING) {
+                    output.write(':');
+                    output.write(getType(k).toString());
                 }
-
             }
-            output.println();
-            for (int i = 0; i < _size; i +=1) {
+            output.newLine();
+            for (int i = 0; i < _size; i += 1) {
                 for (int r = 0; r < _rowSize; r += 1) {
-                    if (r != _rowSize - 1) {
-                        output.print((_columns[r].get(i) + ", "));
-                    } else {
-                        output.print(_columns[r].get(i));
+                    if (r > 0) {
+                        output.write(',');
                     }
+                    output.write(_columns[r].get(i));
                 }
-                output.println();
+                output.newLine();
             }
-
+            syncFile(output, file);
+            output.close();
+            output = null;
+            replaceFile(temp, name + ".db");
+            temp = null;
         } catch (IOException e) {
             throw error("trouble writing to %s.db", name);
         } finally {
             if (output != null) {
-                output.close();
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    /* Already failing; the temporary file is deleted. */
+                }
+            }
+            if (temp != null) {
+                temp.delete();
             }
         }
     }
@@ -218,96 +348,1307 @@ class Table {
     /** Print my contents on the standard output, separated by spaces
      *  and indented by two spaces. */
     void print() {
+        print(-1);
+    }
 
-        int[] order = new int[_size];
-        for (int i = 0; i < _size; i++) {
-            int orderVals = 0;
-            for (int r = 0; r < _size; r++) {
-                int value = compareRows(i, r);
-                if (value <= 0) {
-                    orderVals += 0;
-                } else {
-                    orderVals += 1;
-                }
+    /** Print the first LIMIT of my rows in lexicographic order on the
+     *  standard output, as for print().  A negative LIMIT prints all of
+     *  them.  When LIMIT is less than my size, only LIMIT rows are ever
+     *  kept in order, in a heap whose largest row is evicted whenever
+     *  a smaller one arrives, rather than sorting every row. */
+    void print(int limit) {
+        Table[] locked = lockRead(this);
+        try {
+            printRows(limit);
+        } finally {
+            unlock(locked);
+        }
+    }
 
+    /** Print my first LIMIT rows, as for print(LIMIT), while locked for
+     *  reading. */
+    private void printRows(int limit) {
+        Comparator<Integer> rowOrder = new Comparator<Integer>() {
+            @Override
+            public int compare(Integer k0, Integer k1) {
+                return compareRows(k0, k1);
             }
-            order[orderVals] = i;
+        };
+        Integer[] order;
+        if (limit < 0 || limit >= _size) {
+            order = new Integer[_size];
+            for (int i = 0; i < _size; i += 1) {
+                order[i] = i;
+            }
+        } else {
+            PriorityQueue<Integer> smallest =
+                new PriorityQueue<>(limit + 1,
+                                    Collections.reverseOrder(rowOrder));
+            for (int i = 0; i < _size && limit > 0; i += 1) {
+                if (smallest.size() < limit) {
+                    smallest.add(i);
+                } else if (compareRows(i, smallest.peek()) < 0) {
+                    smallest.poll();
+                    smallest.add(i);
+                }
+            }
+            order = smallest.toArray(new Integer[smallest.size()]);
         }
-        for (int i = 0; i < _size; i += 1) {
-            int rowNum = order[i];
-            String space = " ";
-            for (int r = 0; r < _rowSize; r += 1) {
-                space = space + " " + this.get(rowNum, r);
+        Arrays.sort(order, rowOrder);
 
+        StringBuilder line = new StringBuilder();
+        for (int rowNum : order) {
+            line.setLength(0);
+            line.append(' ');
+            for (int r = 0; r < _rowSize; r += 1) {
+                line.append(' ').append(_columns[r].get(rowNum));
             }
-            System.out.println(space);
+            System.out.println(line);
         }
-
-
     }
 
     /** Return a new Table whose columns are COLUMNNAMES, selected from
      *  rows of this table that satisfy CONDITIONS. */
     Table select(List<String> columnNames, List<Condition> conditions) {
-        Table resultTable = new Table(columnNames);
+        return select(columnNames, conditions,
+                      new QueryPlan(Arrays.asList("table"), true));
+    }
+
+    /** As for select(COLUMNNAMES, CONDITIONS), recording the steps taken
+     *  in PLAN, in which I am table 0.  If PLAN does not execute, only
+     *  records the steps and returns an empty table. */
+    Table select(List<String> columnNames, List<Condition> conditions,
+                 QueryPlan plan) {
+        Table[] locked = lockRead(this);
+        try {
+            return project(columnNames, conditions, plan);
+        } finally {
+            unlock(locked);
+        }
+    }
+
+    /** Return the result of select(COLUMNNAMES, CONDITIONS, PLAN), while
+     *  locked for reading. */
+    private Table project(List<String> columnNames,
+                          List<Condition> conditions, QueryPlan plan) {
         List<Column> colIndexes = new ArrayList<>();
 
         for (String s: columnNames) {
             Column col = new Column(s, this);
             colIndexes.add(col);
         }
-        ValueList originalTab = _columns[findColumn((columnNames.get(0)))];
-        for (int i = 0; i < originalTab.size(); i += 1) {
-            if (conditions == null || Condition.test(conditions, i)) {
-                resultTable.add(colIndexes, i);
-            }
+        int project = plan.add(0, "project " + String.join(", ",
+                                                           columnNames));
+        int[] rows = selectRows(Condition.compile(conditions, 1),
+                                plan, 0, 1);
+        if (!plan.executes()) {
+            return new Table(columnNames);
         }
+        long start = System.nanoTime();
+        Table resultTable =
+            viewTable(columnNames, colIndexes, rows, null, null);
+        plan.done(project, rows.length, resultTable.size(), start);
         return resultTable;
     }
 
     /** Return a new Table whose columns are COLUMNNAMES, selected
      *  from pairs of rows from this table and from TABLE2 that match
-     *  on all columns with identical names and satisfy CONDITIONS. */
+     *  on all columns with identical names and satisfy CONDITIONS.
+     *  Conditions on just one of the tables are applied to that table's
+     *  rows before they are joined. */
     Table select(Table table2, List<String> columnNames,
                  List<Condition> conditions) {
+        return select(table2, columnNames, conditions,
+                      new QueryPlan(Arrays.asList("table1", "table2"),
+                                    true));
+    }
+
+    /** As for select(TABLE2, COLUMNNAMES, CONDITIONS), recording the steps
+     *  taken in PLAN, in which I am table 0 and TABLE2 is table 1.  If
+     *  PLAN does not execute, only records the steps and returns an empty
+     *  table. */
+    Table select(Table table2, List<String> columnNames,
+                 List<Condition> conditions, QueryPlan plan) {
+        Table[] locked = lockRead(this, table2);
+        try {
+            return join(table2, columnNames, conditions, plan);
+        } finally {
+            unlock(locked);
+        }
+    }
+
+    /** Return the result of select(TABLE2, COLUMNNAMES, CONDITIONS, PLAN),
+     *  while TABLE2 and I are locked for reading. */
+    private Table join(Table table2, List<String> columnNames,
+                       List<Condition> conditions, QueryPlan plan) {
         List<Column> col = new ArrayList<>();
-        Table result = new Table(columnNames);
 
         for (int i = 0; i < columnNames.size(); i += 1) {
             col.add(new Column(columnNames.get(i), this, table2));
         }
 
-
-        List<Column> common1 = new ArrayList<>();
-        List<Column> common2 = new ArrayList<>();
+        int[] common1 = new int[columns()];
+        int[] common2 = new int[columns()];
+        int numCommon;
+        numCommon = 0;
         for (int k = 0; k < columns(); k += 1) {
-            String s = this.getTitle(k);
-            if (table2.findColumn(s) != -1) {
-                Column col1 = new Column(s, this);
-                common1.add(col1);
-                Column col2 = new Column(s, table2);
-                common2.add(col2);
+            int k2 = table2.findColumn(getTitle(k));
+            if (k2 != -1) {
+                common1[numCommon] = k;
+                common2[numCommon] = k2;
+                numCommon += 1;
+            }
+        }
+        common1 = Arrays.copyOf(common1, numCommon);
+        common2 = Arrays.copyOf(common2, numCommon);
+
+        Condition[] filter1 = Condition.compile(conditions, 1);
+        Condition[] filter2 = Condition.compile(conditions, 2);
+        Condition[] filter = Condition.compile(conditions, 3);
+        int join = plan.add(0, "join");
+        int[] rows1 = selectRows(filter1, plan, 0, 1);
+        int[] rows2 = table2.selectRows(filter2, plan, 1, 1);
+        int n1 = rows1 == null ? estimateRows(filter1) : rows1.length;
+        int n2 = rows2 == null ? table2.estimateRows(filter2) : rows2.length;
+        boolean sortMerge =
+            numCommon > 0 && Math.min(n1, n2) > JOIN_MEMORY_ROWS;
+        for (int i = 0; i < numCommon; i += 1) {
+            sortMerge &= getType(common1[i])
+                .ordersLike(table2.getType(common2[i]));
+        }
+        StringBuilder description = new StringBuilder();
+        if (numCommon == 0) {
+            description.append("cross join");
+        } else {
+            description.append(sortMerge ? "sort-merge join"
+                               : parallel(n1 + n2) ? "parallel hash join"
+                               : "hash join");
+            description.append(" on ");
+            for (int i = 0; i < numCommon; i += 1) {
+                description.append(i == 0 ? "" : ", ")
+                    .append(getTitle(common1[i]));
+            }
+        }
+        if (filter.length > 0) {
+            description.append(" where ").append(Condition.text(filter));
+        }
+        description.append(" into ").append(String.join(", ", columnNames));
+        plan.describe(join, description.toString());
+        if (!plan.executes()) {
+            return new Table(columnNames);
+        }
+        long start = System.nanoTime();
+        JoinResult joined;
+        try {
+            joined = sortMerge
+                ? sortMergeJoin(rows1, table2, rows2, common1, common2,
+                                filter, col)
+                : hashJoin(rows1, table2, rows2, common1, common2, filter,
+                           col);
+        } catch (OutOfMemoryError e) {
+            throw error("not enough memory to join %d and %d rows", n1, n2);
+        }
+        Table result = viewTable(columnNames, col, joined.rows1(),
+                                 joined.rows2(), joined.hashes());
+        plan.done(join, n1 + n2, result.size(), start);
+        return result;
+    }
+
+    /** Return a new Table whose columns are COLUMNNAMES, and whose row i
+     *  holds, for each k, the value of column COL[k] in row ROWS1[i] of
+     *  its table, if that is the first of the tables COL was made from,
+     *  or row ROWS2[i] otherwise.  The new table's columns are views of
+     *  the columns they come from (see ValueList.view), so no values are
+     *  copied until the table is changed.  Rows that duplicate earlier
+     *  ones are dropped, unless HASHES is not null, in which case there
+     *  are none, and HASHES[i] is the hash of row i (see rowHash).  The
+     *  tables COL reads, and their bases, become the new table's bases
+     *  (see lockRead). */
+    private static Table viewTable(List<String> columnNames,
+                                   List<Column> col,
+                                   int[] rows1, int[] rows2, int[] hashes) {
+        ValueList[] columns = new ValueList[col.size()];
+        ArrayList<Table> bases = new ArrayList<>();
+        for (int k = 0; k < columns.length; k += 1) {
+            Column column = col.get(k);
+            int[] rows = column.tableIndex() == 0 ? rows1 : rows2;
+            columns[k] = column.values().view(rows, rows.length);
+            Table source = column.table();
+            if (!bases.contains(source)) {
+                bases.add(source);
+                for (Table base : source._bases) {
+                    if (!bases.contains(base)) {
+                        bases.add(base);
+                    }
+                }
             }
         }
+        String[] titles = columnNames.toArray(new String[columns.length]);
+        Table result = hashes == null ? new Table(titles, columns)
+            : new Table(titles, columns, hashes);
+        result._bases = bases.toArray(new Table[bases.size()]);
+        return result;
+    }
 
+    /** Acquire read locks on TABLES and on all their bases, in order of
+     *  creation, and return the tables locked, for unlock.  A thread may
+     *  lock a table for reading again while it holds a lock on it. */
+    static Table[] lockRead(Table... tables) {
+        Table[] locked = lockOrder(tables);
+        for (Table table : locked) {
+            table._lock.readLock().lock();
+        }
+        return locked;
+    }
 
-        for (int i = 0; i < _size; i += 1) {
-            for (int r = 0; r < table2.size(); r += 1) {
-                if (conditions == null) {
-                    result.add(common1, i, r);
+    /** Acquire my write lock, and read locks on my bases, in order of
+     *  creation, and return the tables locked, for unlock. */
+    private Table[] lockWrite() {
+        Table[] locked = lockOrder(this);
+        for (Table table : locked) {
+            if (table == this) {
+                _lock.writeLock().lock();
+            } else {
+                table._lock.readLock().lock();
+            }
+        }
+        return locked;
+    }
+
+    /** Release the locks on LOCKED acquired by lockRead or lockWrite. */
+    static void unlock(Table[] locked) {
+        for (int i = locked.length - 1; i >= 0; i -= 1) {
+            ReentrantReadWriteLock lock = locked[i]._lock;
+            if (lock.isWriteLockedByCurrentThread()) {
+                lock.writeLock().unlock();
+            } else {
+                lock.readLock().unlock();
+            }
+        }
+    }
+
+    /** Return TABLES and all their bases, without repetition, in order of
+     *  creation. */
+    private static Table[] lockOrder(Table... tables) {
+        TreeSet<Table> order = new TreeSet<>(new Comparator<Table>() {
+            @Override
+            public int compare(Table t0, Table t1) {
+                return Long.compare(t0._serial, t1._serial);
+            }
+        });
+        for (Table table : tables) {
+            order.add(table);
+            order.addAll(Arrays.asList(table._bases));
+        }
+        return order.toArray(new Table[order.size()]);
+    }
+
+    /** Return the numbers of my rows that satisfy FILTER, all of whose
+     *  conditions refer only to me, in increasing order, recording the
+     *  steps taken in PLAN, in which I am table T, at depth DEPTH.  If
+     *  any of FILTER can be answered by one of my indexes, only the rows
+     *  that index selects are tested.  When there are at least
+     *  PARALLEL_ROWS rows to test, they are split into ranges of
+     *  SCAN_TASK_ROWS that are tested in parallel (see ScanTask).  If
+     *  PLAN does not execute, returns null.  If PLAN gives no name for
+     *  table T, no scan is recorded. */
+    private int[] selectRows(Condition[] filter, QueryPlan plan,
+                             int t, int depth) {
+        int test = -1;
+        if (filter.length > 0) {
+            test = plan.add(depth, "filter " + Condition.text(filter));
+            depth += 1;
+        }
+        long start = System.nanoTime();
+        Condition indexed = indexedCondition(filter);
+        int scan = -1;
+        if (plan.tableName(t) != null) {
+            scan = plan.add(depth, indexed == null
+                            ? "scan " + plan.tableName(t)
+                            : String.format("index scan %s using %s",
+                                            plan.tableName(t), indexed));
+        }
+        if (test != -1 && parallel(estimateRows(filter))) {
+            plan.describe(test, "parallel filter " + Condition.text(filter));
+        }
+        if (!plan.executes()) {
+            return null;
+        }
+        int[] candidates = indexed == null ? null : indexedRows(indexed);
+        int total = candidates == null ? _size : candidates.length;
+        if (scan != -1) {
+            plan.done(scan, _size, total, start);
+        }
+        start = System.nanoTime();
+        int[] rows = filterRows(filter, candidates, total);
+        if (test != -1) {
+            plan.done(test, total, rows.length, start);
+        }
+        return rows;
+    }
+
+    /** Return those of the first TOTAL of CANDIDATES (or of my rows, if
+     *  CANDIDATES is null) that satisfy FILTER, in order. */
+    private int[] filterRows(Condition[] filter, int[] candidates,
+                             int total) {
+        if (filter.length == 0 || !parallel(total)) {
+            return scanRows(filter, candidates, 0, total);
+        }
+        Condition.prepare(filter);
+        int[][] parts = new int[(total - 1) / SCAN_TASK_ROWS + 1][];
+        ForkJoinPool.commonPool().invoke(
+            new ScanTask(filter, candidates, total, parts, 0, parts.length));
+        int n;
+        n = 0;
+        for (int[] part : parts) {
+            n += part.length;
+        }
+        int[] result = new int[n];
+        n = 0;
+        for (int[] part : parts) {
+            System.arraycopy(part, 0, result, n, part.length);
+            n += part.length;
+        }
+        return result;
+    }
+
+    /** Return true iff work on ROWS rows is worth spreading over several
+     *  threads. */
+    private static boolean parallel(int rows) {
+        return rows >= PARALLEL_ROWS
+            && ForkJoinPool.getCommonPoolParallelism() >= 2;
+    }
+
+    /** Return, in order, those of the rows at positions FROM .. TO-1 of
+     *  CANDIDATES that satisfy FILTER.  If CANDIDATES is null, the rows
+     *  are those numbered FROM .. TO-1.  Rows are tested BATCH_SIZE at a
+     *  time, each condition in turn narrowing a vector of selected row
+     *  numbers (see Condition.select). */
+    private int[] scanRows(Condition[] filter, int[] candidates,
+                           int from, int to) {
+        int[] result = new int[to - from];
+        int[] batch = new int[BATCH_SIZE];
+        int n;
+        n = 0;
+        for (int start = from; start < to; start += BATCH_SIZE) {
+            int len = Math.min(BATCH_SIZE, to - start);
+            if (candidates == null) {
+                for (int i = 0; i < len; i += 1) {
+                    batch[i] = start + i;
+                }
+            } else {
+                System.arraycopy(candidates, start, batch, 0, len);
+            }
+            len = Condition.select(filter, batch, len);
+            System.arraycopy(batch, 0, result, n, len);
+            n += len;
+        }
+        return n == result.length ? result : Arrays.copyOf(result, n);
+    }
+
+    /** A task that filters a range of the rows to be tested by
+     *  selectRows.  The rows are divided into parts of SCAN_TASK_ROWS
+     *  each; a task covering several parts splits them between two
+     *  subtasks, and one covering a single part filters it with scanRows
+     *  and stores the result in its own slot of a shared array, so that
+     *  concatenating the slots gives the selected rows in their original
+     *  order.  The conditions must have been prepared (see
+     *  Condition.prepare), so that the tasks only read shared state. */
+    private class ScanTask extends RecursiveAction {
+        /** A task that stores in PARTS[FIRST .. LAST-1] those of the
+         *  corresponding parts of the first TOTAL of CANDIDATES (or of my
+         *  rows, if CANDIDATES is null) that satisfy FILTER. */
+        ScanTask(Condition[] filter, int[] candidates, int total,
+                 int[][] parts, int first, int last) {
+            _filter = filter;
+            _candidates = candidates;
+            _total = total;
+            _parts = parts;
+            _first = first;
+            _last = last;
+        }
+
+        @Override
+        protected void compute() {
+            if (_last - _first == 1) {
+                int from = _first * SCAN_TASK_ROWS;
+                int to = Math.min(_total, from + SCAN_TASK_ROWS);
+                _parts[_first] = scanRows(_filter, _candidates, from, to);
+                return;
+            }
+            int mid = (_first + _last) >>> 1;
+            invokeAll(new ScanTask(_filter, _candidates, _total, _parts,
+                                   _first, mid),
+                      new ScanTask(_filter, _candidates, _total, _parts,
+                                   mid, _last));
+        }
+
+        /** The conditions to test. */
+        private final Condition[] _filter;
+        /** The row numbers to test, or null to test all rows. */
+        private final int[] _candidates;
+        /** Number of rows to test. */
+        private final int _total;
+        /** Results, by part. */
+        private final int[][] _parts;
+        /** First part I cover. */
+        private final int _first;
+        /** Part after the last part I cover. */
+        private final int _last;
+    }
+
+    /** Return whichever of the conditions in FILTER that can be answered
+     *  by one of my indexes selects the fewest rows, or null if none
+     *  can. */
+    private Condition indexedCondition(Condition[] filter) {
+        Condition best;
+        int bestSize;
+        best = null;
+        bestSize = 0;
+        for (Condition cond : filter) {
+            int k = cond.indexableColumn();
+            if (k != -1 && _columnIndexes[k] != null) {
+                ColumnIndex index = _columnIndexes[k];
+                index.refresh();
+                int[] span = cond.span(index);
+                if (best == null || span[1] - span[0] < bestSize) {
+                    best = cond;
+                    bestSize = span[1] - span[0];
+                }
+            }
+        }
+        return best;
+    }
+
+    /** Return the numbers, in increasing order, of the rows selected by
+     *  COND using the index on its column, which must exist. */
+    private int[] indexedRows(Condition cond) {
+        ColumnIndex index = _columnIndexes[cond.indexableColumn()];
+        index.refresh();
+        int[] span = cond.span(index);
+        return index.rows(span[0], span[1]);
+    }
+
+    /** Return the number of my rows that selectRows(FILTER, ...) would
+     *  test: those selected by an index, if one applies, and otherwise
+     *  all of them.  An upper bound on the number it returns. */
+    private int estimateRows(Condition[] filter) {
+        Condition indexed = indexedCondition(filter);
+        if (indexed == null) {
+            return _size;
+        }
+        int[] span = indexed.span(_columnIndexes[indexed.indexableColumn()]);
+        return span[1] - span[0];
+    }
+
+    /** Create an index named NAME on my column named COLUMN.  Thereafter,
+     *  selects from me use it to find the rows satisfying conditions that
+     *  compare COLUMN with a literal.  NAME must differ from the names of
+     *  my other indexes. */
+    void createIndex(String name, String column) {
+        int k = findColumn(column);
+        if (k == -1) {
+            throw error("unknown column: %s", column);
+        }
+        Table[] locked = lockWrite();
+        try {
+            if (_indexNames.containsKey(name)) {
+                throw error("duplicate index name: %s", name);
+            }
+            if (_columnIndexes[k] == null) {
+                _columnIndexes[k] = new ColumnIndex(_columns[k]);
+                _columnIndexes[k].refresh();
+            }
+            _indexNames.put(name, _columnIndexes[k]);
+        } finally {
+            unlock(locked);
+        }
+    }
+
+    /** Return the distinct rows, with columns COL, formed from the pairs
+     *  of one of my rows ROWS1 and one of the rows ROWS2 of TABLE2 that
+     *  agree on my columns KEY1 and the corresponding columns KEY2 of
+     *  TABLE2, and satisfy FILTER.  Builds a hash table on the shorter of
+     *  ROWS1 and ROWS2.  When there are at least PARALLEL_ROWS rows in
+     *  all and KEY1 is not empty, both inputs are first split into
+     *  partitions by the hash of their keys, so that matching rows always
+     *  share a partition, and the partitions are joined in parallel (see
+     *  JoinTask), each dropping its own duplicate rows as it goes; the
+     *  partitions' rows are then merged, dropping those that duplicate
+     *  rows of earlier partitions. */
+    private JoinResult hashJoin(int[] rows1, Table table2, int[] rows2,
+                                int[] key1, int[] key2, Condition[] filter,
+                                List<Column> col) {
+        boolean buildOnMe = rows1.length <= rows2.length;
+        HashJoin join = buildOnMe
+            ? new HashJoin(this, key1, table2, key2, filter, col, true)
+            : new HashJoin(table2, key2, this, key1, filter, col, false);
+        int[] buildRows = buildOnMe ? rows1 : rows2;
+        int[] probeRows = buildOnMe ? rows2 : rows1;
+        if (key1.length == 0 || !parallel(rows1.length + rows2.length)) {
+            return join.join(buildRows, probeRows);
+        }
+        int bits;
+        bits = 1;
+        while (1 << bits < JOIN_PARTITIONS_PER_THREAD
+               * ForkJoinPool.getCommonPoolParallelism()) {
+            bits += 1;
+        }
+        int[][] buildParts = join.partitionBuild(buildRows, bits);
+        int[][] probeParts = join.partitionProbe(probeRows, bits);
+        JoinResult[] results = new JoinResult[buildParts.length];
+        Condition.prepare(filter);
+        ForkJoinPool.commonPool().invoke(
+            new JoinTask(join, buildParts, probeParts, results,
+                         0, results.length));
+        long expected;
+        expected = 0;
+        for (JoinResult part : results) {
+            expected += part.size();
+        }
+        JoinResult result =
+            new JoinResult(col, (int) Math.min(expected, MAX_JOIN_ROWS));
+        for (int p = 0; p < results.length; p += 1) {
+            result.addAll(results[p]);
+            results[p] = null;
+        }
+        return result;
+    }
+
+    /** Return the same rows as hashJoin(ROWS1, TABLE2, ROWS2, KEY1, KEY2,
+     *  FILTER, COL), found by sorting both sets of rows on their keys and
+     *  merging them.  Neither sort holds more than JOIN_MEMORY_ROWS rows
+     *  in memory at once, and only the rows of TABLE2 sharing a single
+     *  key value are buffered during the merge.  Each matching pair goes
+     *  straight into the result, which keeps only distinct rows, so the
+     *  pairs themselves are never all held at once.  KEY1 must not be
+     *  empty, and the types of each pair of key columns must order values
+     *  alike (see ColumnType.ordersLike). */
+    private JoinResult sortMergeJoin(int[] rows1, Table table2,
+                                     int[] rows2, int[] key1, int[] key2,
+                                     Condition[] filter, List<Column> col) {
+        ColumnType[] types = new ColumnType[key1.length];
+        for (int i = 0; i < key1.length; i += 1) {
+            types[i] = getType(key1[i]);
+        }
+        ExternalSort.Cursor left =
+            new ExternalSort(this, rows1, key1, JOIN_MEMORY_ROWS).open();
+        ExternalSort.Cursor right = null;
+        try {
+            right = new ExternalSort(table2, rows2, key2,
+                                     JOIN_MEMORY_ROWS).open();
+            JoinResult result =
+                new JoinResult(col, Math.min(rows1.length, rows2.length));
+            int[] group = new int[16];
+            boolean moreLeft = left.advance();
+            boolean moreRight = right.advance();
+            while (moreLeft && moreRight) {
+                int c = ExternalSort.compareKeys(types, left.key(),
+                                                 right.key());
+                if (c < 0) {
+                    moreLeft = left.advance();
+                } else if (c > 0) {
+                    moreRight = right.advance();
                 } else {
-                    if (equijoin(common1, common2, i, r)) {
-                        if (Condition.test(conditions, i, r)) {
-                            result.add(col, i, r);
+                    String[] key = right.key().clone();
+                    int n;
+                    n = 0;
+                    do {
+                        if (n == group.length) {
+                            group = Arrays.copyOf(group, (int) Math.min(
+                                2L * n, rows2.length));
+                        }
+                        group[n] = right.row();
+                        n += 1;
+                        moreRight = right.advance();
+                    } while (moreRight
+                             && ExternalSort.compareKeys(types, right.key(),
+                                                         key) == 0);
+                    do {
+                        for (int g = 0; g < n; g += 1) {
+                            if (Condition.test(filter, left.row(),
+                                               group[g])) {
+                                result.add(left.row(), group[g]);
+                            }
                         }
+                        moreLeft = left.advance();
+                    } while (moreLeft
+                             && ExternalSort.compareKeys(types, left.key(),
+                                                         key) == 0);
+                }
+            }
+            return result;
+        } finally {
+            left.close();
+            if (right != null) {
+                right.close();
+            }
+        }
+    }
+
+    /** Return the hash of the codes of the values in columns KEY of my
+     *  row ROW. */
+    private int keyHash(int row, int[] key) {
+        int h = 0;
+        for (int k : key) {
+            h = hashStep(h, _columns[k].code(row));
+        }
+        return h;
+    }
+
+    /** Set CODES to the codes that another table gives to the values in
+     *  my columns KEY of row ROW, where XLATE[i] translates the codes of
+     *  my column KEY[i] into those of the other table's corresponding
+     *  column (see ValueList.translate).  Return false if some value is
+     *  absent from the other table, in which case CODES is garbage. */
+    private boolean keyCodes(int row, int[] key, int[][] xlate,
+                             int[] codes) {
+        for (int i = 0; i < key.length; i += 1) {
+            codes[i] = xlate[i][_columns[key[i]].code(row)];
+            if (codes[i] == -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Return true iff the codes of the values in my columns KEY of row
+     *  ROW are CODES. */
+    private boolean keyEquals(int row, int[] key, int[] codes) {
+        for (int i = 0; i < key.length; i += 1) {
+            if (_columns[key[i]].code(row) != codes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** One hash join between a build table and a probe table, which
+     *  knows how to join any subset of the build table's rows with any
+     *  subset of the probe table's.  The probe table's key values are
+     *  matched by translating their codes into the build table's (see
+     *  ValueList.translate), so that keys of both tables hash alike.  A
+     *  HashJoin only reads the tables, so several threads may use it at
+     *  once, provided its filter has been prepared (see
+     *  Condition.prepare). */
+    private static class HashJoin {
+        /** A join, into rows with columns COL, of the rows of BUILD and
+         *  PROBE that agree on BUILD's columns BUILDKEY and PROBE's columns
+         *  PROBEKEY and satisfy FILTER.  If BUILDFIRST, BUILD is the first
+         *  table of FILTER's conditions and COL, and otherwise PROBE is. */
+        HashJoin(Table build, int[] buildKey, Table probe, int[] probeKey,
+                 Condition[] filter, List<Column> col, boolean buildFirst) {
+            _build = build;
+            _col = col;
+            _buildKey = buildKey;
+            _probe = probe;
+            _probeKey = probeKey;
+            _filter = filter;
+            _buildFirst = buildFirst;
+            _xlate = new int[buildKey.length][];
+            for (int i = 0; i < buildKey.length; i += 1) {
+                _xlate[i] = build._columns[buildKey[i]]
+                    .translate(probe._columns[probeKey[i]]);
+            }
+        }
+
+        /** Return the distinct rows formed from the pairs of matching
+         *  rows from BUILDROWS and PROBEROWS, taking the pairs in order of
+         *  the probe row and then of the build row's position in
+         *  BUILDROWS, and keeping the first of any that form equal
+         *  rows. */
+        JoinResult join(int[] buildRows, int[] probeRows) {
+            JoinIndex index = new JoinIndex(_build, buildRows, _buildKey);
+            int[] codes = new int[_buildKey.length];
+            JoinResult result = new JoinResult(_col, probeRows.length);
+            for (int p : probeRows) {
+                if (!_probe.keyCodes(p, _probeKey, _xlate, codes)) {
+                    continue;
+                }
+                int hash = codesHash(codes);
+                for (int e = index.first(hash); e != -1;
+                     e = index.next(e)) {
+                    int b = buildRows[e];
+                    if (index.hash(e) != hash
+                        || !_build.keyEquals(b, _buildKey, codes)) {
+                        continue;
+                    }
+                    int row1 = _buildFirst ? b : p;
+                    int row2 = _buildFirst ? p : b;
+                    if (Condition.test(_filter, row1, row2)) {
+                        result.add(row1, row2);
                     }
                 }
             }
+            return result;
         }
 
-        return result;
+        /** Return ROWS, rows of my build table, split into 2**BITS
+         *  partitions by the hash of their keys. */
+        int[][] partitionBuild(int[] rows, int bits) {
+            int[] parts = new int[rows.length];
+            for (int i = 0; i < rows.length; i += 1) {
+                parts[i] = partition(_build.keyHash(rows[i], _buildKey),
+                                     bits);
+            }
+            return split(rows, parts, bits);
+        }
+
+        /** Return ROWS, rows of my probe table, split into 2**BITS
+         *  partitions by the hash of their keys in the build table's
+         *  codes, so that each is in the same partition as the build
+         *  rows that match it.  Rows that match none are dropped. */
+        int[][] partitionProbe(int[] rows, int bits) {
+            int[] parts = new int[rows.length];
+            int[] codes = new int[_probeKey.length];
+            for (int i = 0; i < rows.length; i += 1) {
+                if (_probe.keyCodes(rows[i], _probeKey, _xlate, codes)) {
+                    parts[i] = partition(codesHash(codes), bits);
+                } else {
+                    parts[i] = -1;
+                }
+            }
+            return split(rows, parts, bits);
+        }
+
+        /** Return the partition, among 2**BITS, for key hash HASH.  Uses
+         *  the high bits of a multiplicative hash, leaving the low bits,
+         *  which select JoinIndex buckets, varied within a partition. */
+        private static int partition(int hash, int bits) {
+            return (hash * 0x9E3779B9) >>> (32 - bits);
+        }
+
+        /** Return the elements of ROWS split into 2**BITS arrays, ROWS[i]
+         *  going to array PARTS[i] (or nowhere if it is -1) and keeping
+         *  its order. */
+        private static int[][] split(int[] rows, int[] parts, int bits) {
+            int[] sizes = new int[1 << bits];
+            for (int part : parts) {
+                if (part != -1) {
+                    sizes[part] += 1;
+                }
+            }
+            int[][] result = new int[sizes.length][];
+            for (int p = 0; p < sizes.length; p += 1) {
+                result[p] = new int[sizes[p]];
+                sizes[p] = 0;
+            }
+            for (int i = 0; i < rows.length; i += 1) {
+                int p = parts[i];
+                if (p != -1) {
+                    result[p][sizes[p]] = rows[i];
+                    sizes[p] += 1;
+                }
+            }
+            return result;
+        }
+
+        /** The columns of the joined rows. */
+        private final List<Column> _col;
+        /** The table on whose rows the hash table is built. */
+        private final Table _build;
+        /** The join columns of _build. */
+        private final int[] _buildKey;
+        /** The table whose rows are looked up. */
+        private final Table _probe;
+        /** The join columns of _probe, corresponding to _buildKey. */
+        private final int[] _probeKey;
+        /** Further conditions that joined rows must satisfy. */
+        private final Condition[] _filter;
+        /** True iff _build is the first table of _filter's conditions. */
+        private final boolean _buildFirst;
+        /** _xlate[i] translates codes of _probe's column _probeKey[i] into
+         *  those of _build's column _buildKey[i]. */
+        private final int[][] _xlate;
+    }
+
+    /** A task that joins a range of the partitions of a parallel hash
+     *  join.  A task covering several partitions splits them between two
+     *  subtasks; one covering a single partition joins it and stores the
+     *  resulting rows in its own slot of a shared array. */
+    private static class JoinTask extends RecursiveAction {
+        /** A task that sets RESULTS[p] to JOIN.join(BUILDPARTS[p],
+         *  PROBEPARTS[p]) for FIRST <= p < LAST. */
+        JoinTask(HashJoin join, int[][] buildParts, int[][] probeParts,
+                 JoinResult[] results, int first, int last) {
+            _join = join;
+            _buildParts = buildParts;
+            _probeParts = probeParts;
+            _results = results;
+            _first = first;
+            _last = last;
+        }
+
+        @Override
+        protected void compute() {
+            if (_last - _first == 1) {
+                _results[_first] = _join.join(_buildParts[_first],
+                                              _probeParts[_first]);
+                return;
+            }
+            int mid = (_first + _last) >>> 1;
+            invokeAll(new JoinTask(_join, _buildParts, _probeParts,
+                                   _results, _first, mid),
+                      new JoinTask(_join, _buildParts, _probeParts,
+                                   _results, mid, _last));
+        }
+
+        /** The join being performed. */
+        private final HashJoin _join;
+        /** The build rows, by partition. */
+        private final int[][] _buildParts;
+        /** The probe rows, by partition. */
+        private final int[][] _probeParts;
+        /** Joined rows, by partition. */
+        private final JoinResult[] _results;
+        /** First partition I cover. */
+        private final int _first;
+        /** Partition after the last one I cover. */
+        private final int _last;
     }
 
+    /** The distinct rows of the result of a join, collected as matching
+     *  pairs of input rows are found, so that the memory needed grows with
+     *  the number of distinct rows rather than with the number of pairs.
+     *  Each row is recorded as the pair of input rows it was formed from,
+     *  the first table's row first, and two pairs form equal rows iff the
+     *  codes of their values in each of the result's columns are equal.
+     *  Of several pairs forming equal rows, only the first is kept.  The
+     *  pairs are indexed by a hash table, like a Table's _index, from the
+     *  hash of the codes of their values. */
+    private static class JoinResult {
+        /** An empty result whose columns are COL, each taking its value
+         *  from the row of the first table if its table index (see
+         *  Column.tableIndex) is 0, and from that of the second
+         *  otherwise, with room for about EXPECTED rows before it must
+         *  grow. */
+        JoinResult(List<Column> col, int expected) {
+            _values = new ValueList[col.size()];
+            _first = new boolean[col.size()];
+            for (int k = 0; k < _values.length; k += 1) {
+                _values[k] = col.get(k).values();
+                _first[k] = col.get(k).tableIndex() == 0;
+            }
+            int capacity = INITIAL_INDEX_SIZE / 2;
+            while (capacity < expected && capacity < MAX_JOIN_ROWS) {
+                capacity *= 2;
+            }
+            _rows1 = new int[capacity];
+            _rows2 = new int[capacity];
+            _hashes = new int[capacity];
+            _index = emptyIndex(2 * capacity);
+        }
+
+        /** Add the row formed from row ROW1 of the first table and row
+         *  ROW2 of the second, unless I already have an equal row.  The
+         *  rows are buffered, and checked BATCH_SIZE at a time (see
+         *  flush).  Throws a DBException if I would have more than
+         *  MAX_JOIN_ROWS rows. */
+        void add(int row1, int row2) {
+            if (_pending == BATCH_SIZE) {
+                flush();
+            }
+            _pending1[_pending] = row1;
+            _pending2[_pending] = row2;
+            _pending += 1;
+        }
+
+        /** Add the rows of OTHER, which has the same columns as I, in
+         *  order, omitting those equal to rows I already have. */
+        void addAll(JoinResult other) {
+            flush();
+            other.flush();
+            for (int e = 0; e < other._size; e += 1) {
+                add(other._rows1[e], other._rows2[e], other._hashes[e]);
+            }
+        }
+
+        /** Return the number of my rows. */
+        int size() {
+            flush();
+            return _size;
+        }
+
+        /** Return the first table's row of each of my rows, in order. */
+        int[] rows1() {
+            flush();
+            return Arrays.copyOf(_rows1, _size);
+        }
+
+        /** Return the second table's row of each of my rows, in order. */
+        int[] rows2() {
+            flush();
+            return Arrays.copyOf(_rows2, _size);
+        }
+
+        /** Return the hash of the codes of each of my rows' values, in
+         *  order, which is its hash as a row of a Table (see rowHash). */
+        int[] hashes() {
+            flush();
+            return Arrays.copyOf(_hashes, _size);
+        }
+
+        /** Add the buffered rows, in order, omitting those equal to rows
+         *  I already have.  Their hashes are computed a column at a
+         *  time. */
+        private void flush() {
+            int n = _pending;
+            if (n == 0) {
+                return;
+            }
+            int[] hashes = _pendingHashes;
+            Arrays.fill(hashes, 0, n, 0);
+            for (int k = 0; k < _values.length; k += 1) {
+                ValueList values = _values[k];
+                int[] rows = _first[k] ? _pending1 : _pending2;
+                for (int i = 0; i < n; i += 1) {
+                    hashes[i] = hashStep(hashes[i], values.code(rows[i]));
+                }
+            }
+            _pending = 0;
+            for (int i = 0; i < n; i += 1) {
+                add(_pending1[i], _pending2[i], hashes[i]);
+            }
+        }
+
+        /** Add the row formed from rows ROW1 and ROW2, whose hash is
+         *  HASH, as for add(ROW1, ROW2). */
+        private void add(int row1, int row2, int hash) {
+            int mask = _index.length - 1;
+            int k;
+            for (k = spread(hash) & mask; _index[k] != -1;
+                 k = (k + 1) & mask) {
+                int e = _index[k];
+                if (_hashes[e] == hash && rowEquals(e, row1, row2)) {
+                    return;
+                }
+            }
+            if (_size == _rows1.length) {
+                grow();
+                mask = _index.length - 1;
+                for (k = spread(hash) & mask; _index[k] != -1;
+                     k = (k + 1) & mask) {
+                    /* Empty */
+                }
+            }
+            _rows1[_size] = row1;
+            _rows2[_size] = row2;
+            _hashes[_size] = hash;
+            _index[k] = _size;
+            _size += 1;
+        }
+
+        /** Return true iff my row E equals that formed from ROW1 and
+         *  ROW2. */
+        private boolean rowEquals(int e, int row1, int row2) {
+            for (int k = 0; k < _values.length; k += 1) {
+                ValueList values = _values[k];
+                if (_first[k]
+                    ? values.code(_rows1[e]) != values.code(row1)
+                    : values.code(_rows2[e]) != values.code(row2)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** Double my capacity, and the size of my index, throwing a
+         *  DBException if that would exceed MAX_JOIN_ROWS. */
+        private void grow() {
+            if (_rows1.length >= MAX_JOIN_ROWS) {
+                throw error("join result has more than %d rows",
+                            MAX_JOIN_ROWS);
+            }
+            int capacity = 2 * _rows1.length;
+            _rows1 = Arrays.copyOf(_rows1, capacity);
+            _rows2 = Arrays.copyOf(_rows2, capacity);
+            _hashes = Arrays.copyOf(_hashes, capacity);
+            _index = emptyIndex(2 * capacity);
+            int mask = _index.length - 1;
+            for (int e = 0; e < _size; e += 1) {
+                int k;
+                for (k = spread(_hashes[e]) & mask; _index[k] != -1;
+                     k = (k + 1) & mask) {
+                    /* Empty */
+                }
+                _index[k] = e;
+            }
+        }
+
+        /** The values of my columns. */
+        private final ValueList[] _values;
+        /** _first[k] is true iff my column k takes its value from the
+         *  first table's row. */
+        private final boolean[] _first;
+        /** _rows1[e] and _rows2[e] are the first and second tables' rows
+         *  forming my row e, for e < _size. */
+        private int[] _rows1, _rows2;
+        /** _hashes[e] is the hash of the codes of my row e's values. */
+        private int[] _hashes;
+        /** A hash index over my rows, kept at most half full, each slot
+         *  being -1 (empty) or the number of a row. */
+        private int[] _index;
+        /** My number of rows. */
+        private int _size;
+        /** _pending1[i] and _pending2[i] are the rows forming the ith of
+         *  the rows buffered by add, for i < _pending. */
+        private final int[] _pending1 = new int[BATCH_SIZE],
+            _pending2 = new int[BATCH_SIZE];
+        /** Space for the hashes of the buffered rows. */
+        private final int[] _pendingHashes = new int[BATCH_SIZE];
+        /** Number of buffered rows. */
+        private int _pending;
+    }
+
+    /** The build side of a hash join: a chained hash table from the key
+     *  hash (see keyHash) of each of a list of rows of a table to the
+     *  positions in that list of the rows having that hash.  Chains are
+     *  threaded through an array indexed by position, so that a probe
+     *  walks a chain without allocating. */
+    private static class JoinIndex {
+        /** A JoinIndex over the rows ROWS of TABLE, keyed on its columns
+         *  KEY. */
+        JoinIndex(Table table, int[] rows, int[] key) {
+            int n = rows.length;
+            int capacity = 1;
+            while (capacity < n) {
+                capacity *= 2;
+            }
+            _heads = emptyIndex(capacity);
+            _next = new int[n];
+            _hashes = new int[n];
+            for (int e = n - 1; e >= 0; e -= 1) {
+                int h = table.keyHash(rows[e], key);
+                int bucket = spread(h) & (capacity - 1);
+                _hashes[e] = h;
+                _next[e] = _heads[bucket];
+                _heads[bucket] = e;
+            }
+        }
+
+        /** Return the position of the first row in the chain for key
+         *  hash HASH, or -1 if the chain is empty.  Rows in a chain need
+         *  not have hash HASH exactly; callers check hash(position). */
+        int first(int hash) {
+            return _heads[spread(hash) & (_heads.length - 1)];
+        }
+
+        /** Return the position following POSITION in its chain, or -1. */
+        int next(int position) {
+            return _next[position];
+        }
+
+        /** Return the key hash of the row at POSITION. */
+        int hash(int position) {
+            return _hashes[position];
+        }
+
+        /** _heads[b] is the first position in bucket b, or -1. */
+        private final int[] _heads;
+        /** _next[e] is the position after e in its chain, or -1. */
+        private final int[] _next;
+        /** _hashes[e] is the key hash of the row at position e. */
+        private final int[] _hashes;
+    }
+
+    /** Append the first N rows of ROWS, each of which has one value per
+     *  column, without checking for duplicates or updating my index.
+     *  Space for all N rows is allocated at once.  Bulk loads use this
+     *  and must call reindex() when done. */
+    void appendRows(String[][] rows, int n) {
+        for (int k = 0; k < _rowSize; k += 1) {
+            _columns[k].ensureCapacity(_size + n);
+        }
+        for (int i = 0; i < n; i += 1) {
+            append(rows[i]);
+        }
+    }
+
+    /** Append VALUES as a new row without checking for duplicates or
+     *  updating my index.  Used directly only by bulk loads, which
+     *  must call reindex() afterwards. */
+    private void append(String[] values) {
+        for (int k = 0; k < _rowSize; k += 1) {
+            _columns[k].add(values[k]);
+        }
+        _size += 1;
+    }
+
+    /** Rebuild my index from scratch, discarding every row that
+     *  duplicates an earlier one.  This is the bulk counterpart of
+     *  add(String[]): it costs one pass over the rows, rather than one
+     *  probe per row against a growing index. */
+    void reindex() {
+        int capacity = INITIAL_INDEX_SIZE;
+        while (capacity < 2 * _size) {
+            capacity *= 2;
+        }
+        _index = emptyIndex(capacity);
+        _rowHashes = new int[Math.max(_size, _rowHashes.length)];
+        indexRows(0);
+    }
+
+    /** Add my rows numbered FIRST and above to my index, which must have
+     *  room for them, discarding (and closing the gaps left by) each one
+     *  that duplicates an earlier row. */
+    private void indexRows(int first) {
+        int kept;
+        kept = first;
+        for (int r = first; r < _size; r += 1) {
+            int hash = rowHash(r);
+            if (findRow(r, hash) == -1) {
+                if (kept != r) {
+                    for (int k = 0; k < _rowSize; k += 1) {
+                        _columns[k].copy(r, kept);
+                    }
+                }
+                _rowHashes[kept] = hash;
+                _index[slotFor(hash)] = kept;
+                kept += 1;
+            }
+        }
+        for (int k = 0; k < _rowSize; k += 1) {
+            _columns[k].truncate(kept);
+        }
+        _size = kept;
+    }
+
+    /** Record row number ROW, whose hash is HASH, in my index, growing
+     *  the index if it is more than half full. */
+    private void indexRow(int row, int hash) {
+        if (row >= _rowHashes.length) {
+            _rowHashes = Arrays.copyOf(_rowHashes, 2 * _rowHashes.length);
+        }
+        _rowHashes[row] = hash;
+        if (2 * _size > _index.length) {
+            _index = emptyIndex(2 * _index.length);
+            for (int r = 0; r < row; r += 1) {
+                _index[slotFor(_rowHashes[r])] = r;
+            }
+        }
+        _index[slotFor(hash)] = row;
+    }
+
+    /** Grow my index, if needed, so that it can hold ROWS rows without
+     *  growing again. */
+    private void reserveIndex(int rows) {
+        if (rows > _rowHashes.length) {
+            _rowHashes = Arrays.copyOf(_rowHashes,
+                                       Math.max(rows, 2 * _rowHashes.length));
+        }
+        if (2 * rows > _index.length) {
+            int capacity = _index.length;
+            while (capacity < 2 * rows) {
+                capacity *= 2;
+            }
+            _index = emptyIndex(capacity);
+            for (int r = 0; r < _size; r += 1) {
+                _index[slotFor(_rowHashes[r])] = r;
+            }
+        }
+    }
+
+    /** Return the empty slot of _index at which a row whose hash is HASH
+     *  is to be stored. */
+    private int slotFor(int hash) {
+        int mask = _index.length - 1;
+        int k = spread(hash) & mask;
+        while (_index[k] != -1) {
+            k = (k + 1) & mask;
+        }
+        return k;
+    }
+
+    /** Return the number of a row of mine whose values have the codes
+     *  CODES, and whose hash is HASH, or -1 if there is none. */
+    private int findRow(int[] codes, int hash) {
+        int mask = _index.length - 1;
+        for (int k = spread(hash) & mask; _index[k] != -1;
+             k = (k + 1) & mask) {
+            int r = _index[k];
+            if (_rowHashes[r] == hash && rowEquals(r, codes)) {
+                return r;
+            }
+        }
+        return -1;
+    }
+
+    /** Return the number of an indexed row of mine equal to row ROW,
+     *  whose hash is HASH, or -1 if there is none. */
+    private int findRow(int row, int hash) {
+        int mask = _index.length - 1;
+        for (int k = spread(hash) & mask; _index[k] != -1;
+             k = (k + 1) & mask) {
+            int r = _index[k];
+            if (_rowHashes[r] == hash && rowsEqual(r, row)) {
+                return r;
+            }
+        }
+        return -1;
+    }
+
+    /** Return true iff the values in my row ROW have the codes CODES. */
+    private boolean rowEquals(int row, int[] codes) {
+        for (int k = 0; k < _rowSize; k += 1) {
+            if (_columns[k].code(row) != codes[k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Return true iff my rows ROW0 and ROW1 have equal values. */
+    private boolean rowsEqual(int row0, int row1) {
+        for (int k = 0; k < _rowSize; k += 1) {
+            if (_columns[k].code(row0) != _columns[k].code(row1)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Return the hash of a row or key whose values have the codes
+     *  CODES. */
+    private static int codesHash(int[] codes) {
+        int h = 0;
+        for (int c : codes) {
+            h = hashStep(h, c);
+        }
+        return h;
+    }
+
+    /** Return the hash of a row or key whose values have codes C0, C1,
+     *  ..., CODE, given the hash H of that with codes C0, C1, ....
+     *  Codes are small and dense, so rather than the usual 31 * H + CODE,
+     *  which maps the codes of a large table of pairs onto few more
+     *  hashes than there are codes, each step multiplies by a large odd
+     *  constant, scattering nearby codes across all the bits. */
+    private static int hashStep(int h, int code) {
+        return (h + code) * 0x9E3779B9;
+    }
+
+    /** Return the hash of my row number ROW, which agrees with
+     *  codesHash on the codes of that row's values. */
+    private int rowHash(int row) {
+        int h = 0;
+        for (int k = 0; k < _rowSize; k += 1) {
+            h = hashStep(h, _columns[k].code(row));
+        }
+        return h;
+    }
+
+    /** Return HASH with its high bits folded into its low bits, so that
+     *  masking it to an index size keeps most of its information. */
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /** Return an index with SIZE empty slots.  SIZE is a power of 2. */
+    private static int[] emptyIndex(int size) {
+        int[] index = new int[size];
+        Arrays.fill(index, -1);
+        return index;
+    }
 
     /** Return <0, 0, or >0 depending on whether the row formed from
      *  the elements _columns[0].get(K0), _columns[1].get(K0), ...
@@ -316,7 +1657,9 @@ class Table {
      *  the _index. */
     private int compareRows(int k0, int k1) {
         for (int i = 0; i < _columns.length; i += 1) {
-            int c = _columns[i].get(k0).compareTo(_columns[i].get(k1));
+            ValueList column = _columns[i];
+            int c = Integer.compare(column.rank(column.code(k0)),
+                                    column.rank(column.code(k1)));
             if (c != 0) {
                 return c;
             }
@@ -324,60 +1667,78 @@ class Table {
         return 0;
     }
 
-    /** Return true if the columns COMMON1 from ROW1 and COMMON2 from
-     *  ROW2 all have identical values.  Assumes that COMMON1 and
-     *  COMMON2 have the same number of elements and the same names,
-     *  that the columns in COMMON1 apply to this table, those in
-     *  COMMON2 to another, and that ROW1 and ROW2 are indices, respectively,
-     *  into those tables. */
-    private static boolean equijoin(List<Column> common1, List<Column> common2,
-                                    int row1, int row2) {
-        ArrayList<String> compare1 = new ArrayList<>();
-        ArrayList<String> compare2 = new ArrayList<>();
-        for (int i = 0; i < common1.size(); i += 1){
-            Column col1 = common1.get(i);
-            compare1.add(col1.getFrom(row1));
-            Column col2 = common2.get(i);
-            compare2.add(col2.getFrom(row2));
-        }
-        for (int i = 0; i < common2.size(); i += 1) {
-            if (!compare1.get(i).equals(compare2.get(i))) {
-                return false;
-            }
-        }
-        return true;
-    }
-
-    /** A class that is essentially ArrayList<String>.  For technical reasons,
-     *  we need to encapsulate ArrayList<String> like this because the
-     *  underlying design of Java does not properly distinguish between
-     *  different kinds of ArrayList at runtime (e.g., if you have a
-     *  variable of type Object that was created from an ArrayList, there is
-     *  no way to determine in general whether it is an ArrayList<String>,
-     *  ArrayList<Integer>, or ArrayList<Object>).  This leads to annoying
-     *  compiler warnings.  The trick of defining a new type avoids this
-     *  issue. */
-    private static class ValueList extends ArrayList<String> {
-    }
+    /** Source of serial numbers for new tables. */
+    private static final AtomicLong SERIALS = new AtomicLong();
 
+    /** My serial number: the order in which I was created, which is the
+     *  order in which locks on tables are acquired. */
+    private final long _serial = SERIALS.getAndIncrement();
+    /** Guards my contents against concurrent changes. */
+    private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+    /** The tables whose rows my columns view, and must be locked for
+     *  reading whenever I am locked. */
+    private Table[] _bases = new Table[0];
     /** My column titles. */
     private final String[] _titles;
     /** My columns. Row i consists of _columns[k].get(i) for all k. */
     private final ValueList[] _columns;
 
-    /** Rows in the database are supposed to be sorted. To do so, we
-     *  have a list whose kth element is the index in each column
-     *  of the value of that column for the kth row in lexicographic order.
-     *  That is, the first row (smallest in lexicographic order)
-     *  is at position _index.get(0) in _columns[0], _columns[1], ...
-     *  and the kth row in lexicographic order in at position _index.get(k).
-     *  When a new row is inserted, insert its index at the appropriate
-     *  place in this list.
-     *  (Alternatively, we could simply keep each column in the proper order
-     *  so that we would not need _index.  But that would mean that inserting
-     *  a new row would require rearranging _rowSize lists (each list in
-     *  _columns) rather than just one. */
-    private final ArrayList<Integer> _index = new ArrayList<>();
+    /** The largest number of rows of the smaller input that a join holds
+     *  in a hash table.  Joins of larger tables sort both inputs, spilling
+     *  sorted runs of at most this many rows to temporary files, and
+     *  merge them instead, so that the inputs' sort keys need not fit in
+     *  memory.  The output is not bounded by this: like every join's, it
+     *  is collected as its distinct rows (see JoinResult), and so needs
+     *  memory in proportion to the result table, which is itself held in
+     *  memory, but not to the number of matching pairs.  Set by the
+     *  system property db61b.joinMemoryRows. */
+    static final int JOIN_MEMORY_ROWS =
+        Integer.getInteger("db61b.joinMemoryRows", 1 << 20);
+
+    /** The largest number of rows a join may produce.  A power of 2,
+     *  small enough that the hash index over them (see JoinResult), which
+     *  has twice as many slots, can be allocated. */
+    static final int MAX_JOIN_ROWS = 1 << 29;
+
+    /** Number of rows whose conditions are evaluated together when
+     *  filtering a table. */
+    static final int BATCH_SIZE = 1024;
+
+    /** The smallest number of rows that selectRows tests in parallel.
+     *  Set by the system property db61b.parallelRows. */
+    static final int PARALLEL_ROWS =
+        Integer.getInteger("db61b.parallelRows", 1 << 18);
+
+    /** Number of rows tested by each parallel task in selectRows.  Set
+     *  by the system property db61b.scanTaskRows. */
+    static final int SCAN_TASK_ROWS =
+        Integer.getInteger("db61b.scanTaskRows", 1 << 16);
+
+    /** Number of partitions per thread into which a parallel hash join
+     *  splits its inputs, so that unevenly sized partitions still keep
+     *  every thread busy. */
+    private static final int JOIN_PARTITIONS_PER_THREAD = 4;
+
+    /** Size in chars of the buffer used by writeTable. */
+    private static final int WRITE_BUFFER_SIZE = 1 << 16;
+
+    /** Initial number of slots in _index.  Must be a power of 2. */
+    private static final int INITIAL_INDEX_SIZE = 16;
+
+    /** A hash index over my rows, used to reject duplicate rows in
+     *  constant expected time.  Each slot is either -1 (empty) or the
+     *  number of a row, stored by linear probing from the slot selected
+     *  by that row's hash.  The index is kept at most half full. */
+    private int[] _index;
+    /** _rowHashes[r] is the hash of row r (see rowHash), cached so that
+     *  probes and index growth need not rehash any column values. */
+    private int[] _rowHashes;
+
+    /** _columnIndexes[k] is the index on my column k, or null if it has
+     *  none. */
+    private final ColumnIndex[] _columnIndexes;
+    /** My indexes, by name.  Several names may denote the same index. */
+    private final HashMap<String, ColumnIndex> _indexNames;
 
     /** My number of rows (redundant, but convenient). */
     private int _size;
@@ -0,0 +1,277 @@
+package db61b;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static db61b.Utils.*;
+
+/** Loads a Table from a .db file by memory-mapping the file and
+ *  scanning its bytes directly.  Fields are separated at commas and
+ *  rows at ends of line with no regular expressions and no per-line
+ *  String; each field is copied once, into a reusable buffer, and turned
+ *  into a String only if its column has not seen those bytes before
+ *  (see Interner).  Rows are handed to the Table in batches, and its
+ *  duplicate-row index is built once at the end.  Files larger than
+ *  CHUNK_SIZE bytes are mapped a chunk at a time.
+ *  @author Matthew Brennan
+ */
+class TableReader {
+
+    /** A reader for the file NAME.db. */
+    TableReader(String name) {
+        _name = name;
+        _field = new byte[64];
+    }
+
+    /** Read my file and return its contents as a Table.  Format errors
+     *  in the file cause a DBException. */
+    Table read() {
+        FileInputStream input;
+        try {
+            input = new FileInputStream(_name + ".db");
+        } catch (FileNotFoundException e) {
+            throw error("could not find %s.db", _name);
+        }
+        try {
+            _channel = input.getChannel();
+            _length = _channel.size();
+            _mapped = 0;
+            _buffer = null;
+            return readRows(readHeader());
+        } catch (IOException e) {
+            throw error("problem reading from %s.db", _name);
+        } finally {
+            try {
+                input.close();
+            } catch (IOException e) {
+                /* Nothing more can be done. */
+            }
+        }
+    }
+
+    /** Read the header line and return an empty Table with its column
+     *  titles and types.  A title may be followed by a colon and the
+     *  column's type (see Table.writeTable); otherwise the column holds
+     *  strings. */
+    private Table readHeader() throws IOException {
+        ArrayList<String> titles = new ArrayList<>();
+        ArrayList<ColumnType> types = new ArrayList<>();
+        int end;
+        do {
+            end = readField();
+            if (end == EOF && titles.isEmpty() && _fieldLength == 0) {
+                throw error("missing header in DB file");
+            }
+            String title = new String(_field, 0, _fieldLength,
+                                      StandardCharsets.UTF_8);
+            int colon = title.indexOf(':');
+            if (colon == -1) {
+                titles.add(title);
+                types.add(ColumnType.STRING);
+            } else {
+                titles.add(title.substring(0, colon));
+                types.add(ColumnType.forName(title.substring(colon + 1)));
+            }
+        } while (end == ',');
+        return new Table(titles, types);
+    }
+
+    /** Read the remaining lines of my file as rows of TABLE, which has no
+     *  rows yet, and return TABLE. */
+    private Table readRows(Table table) throws IOException {
+        int columns = table.columns();
+        Interner[] interners = new Interner[columns];
+        for (int k = 0; k < columns; k += 1) {
+            interners[k] = new Interner();
+        }
+        String[][] batch = new String[BATCH_ROWS][columns];
+        int n;
+        n = 0;
+        while (true) {
+            int k;
+            k = 0;
+            int end;
+            do {
+                end = readField();
+                if (end == EOF && k == 0 && _fieldLength == 0) {
+                    table.appendRows(batch, n);
+                    table.reindex();
+                    return table;
+                }
+                if (k == columns) {
+                    throw error("lengths of data and _rowsize do not match");
+                }
+                batch[n][k] = interners[k].intern(_field, _fieldLength);
+                k += 1;
+            } while (end == ',');
+            if (k != columns) {
+                throw error("lengths of data and _rowsize do not match");
+            }
+            n += 1;
+            if (n == BATCH_ROWS) {
+                table.appendRows(batch, n);
+                n = 0;
+            }
+        }
+    }
+
+    /** Copy the bytes up to the next comma, end of line, or end of file
+     *  into _field, setting _fieldLength, and return the character that
+     *  ended the field: ',', '\n', or EOF.  A carriage return before an
+     *  end of line is dropped, as is a final end of line. */
+    private int readField() throws IOException {
+        _fieldLength = 0;
+        while (true) {
+            if (_buffer == null || !_buffer.hasRemaining()) {
+                if (!mapNext()) {
+                    return EOF;
+                }
+            }
+            byte b = _buffer.get();
+            if (b == ',') {
+                return ',';
+            } else if (b == '\n') {
+                if (_fieldLength > 0 && _field[_fieldLength - 1] == '\r') {
+                    _fieldLength -= 1;
+                }
+                return '\n';
+            }
+            if (_fieldLength == _field.length) {
+                _field = Arrays.copyOf(_field, 2 * _fieldLength);
+            }
+            _field[_fieldLength] = b;
+            _fieldLength += 1;
+        }
+    }
+
+    /** Map the next chunk of my file into _buffer, returning false if the
+     *  whole file has been read. */
+    private boolean mapNext() throws IOException {
+        if (_mapped >= _length) {
+            return false;
+        }
+        long size = Math.min(CHUNK_SIZE, _length - _mapped);
+        _buffer = _channel.map(FileChannel.MapMode.READ_ONLY, _mapped, size);
+        _mapped += size;
+        return true;
+    }
+
+    /** Turns the bytes of fields from one column into Strings, returning
+     *  the same String each time the same bytes recur.  Repeated values
+     *  (such as department codes) thus cost a hash probe rather than a
+     *  new String, and reach the column's dictionary as an identical
+     *  String.  Stops remembering new values after MAX_INTERNED distinct
+     *  ones, so that columns of unique values do not double in size. */
+    private static class Interner {
+        /** An empty Interner. */
+        Interner() {
+            _keys = new byte[INITIAL_SLOTS][];
+            _values = new String[INITIAL_SLOTS];
+        }
+
+        /** Return the String whose UTF-8 encoding is BYTES[0 .. LENGTH-1],
+         *  reusing an earlier String for the same bytes if possible. */
+        String intern(byte[] bytes, int length) {
+            int mask = _keys.length - 1;
+            int k = hash(bytes, length) & mask;
+            while (_keys[k] != null) {
+                if (equal(_keys[k], bytes, length)) {
+                    return _values[k];
+                }
+                k = (k + 1) & mask;
+            }
+            String value = new String(bytes, 0, length,
+                                      StandardCharsets.UTF_8);
+            if (_count < MAX_INTERNED) {
+                _keys[k] = Arrays.copyOf(bytes, length);
+                _values[k] = value;
+                _count += 1;
+                if (2 * _count > _keys.length) {
+                    grow();
+                }
+            }
+            return value;
+        }
+
+        /** Return the hash of BYTES[0 .. LENGTH-1]. */
+        private static int hash(byte[] bytes, int length) {
+            int h = 0;
+            for (int i = 0; i < length; i += 1) {
+                h = 31 * h + bytes[i];
+            }
+            return h ^ (h >>> 16);
+        }
+
+        /** Return true iff KEY is BYTES[0 .. LENGTH-1]. */
+        private static boolean equal(byte[] key, byte[] bytes, int length) {
+            if (key.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i += 1) {
+                if (key[i] != bytes[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** Double the number of my slots. */
+        private void grow() {
+            byte[][] keys = _keys;
+            String[] values = _values;
+            _keys = new byte[2 * keys.length][];
+            _values = new String[2 * keys.length];
+            int mask = _keys.length - 1;
+            for (int i = 0; i < keys.length; i += 1) {
+                if (keys[i] != null) {
+                    int k = hash(keys[i], keys[i].length) & mask;
+                    while (_keys[k] != null) {
+                        k = (k + 1) & mask;
+                    }
+                    _keys[k] = keys[i];
+                    _values[k] = values[i];
+                }
+            }
+        }
+
+        /** Initial number of slots.  Must be a power of 2. */
+        private static final int INITIAL_SLOTS = 64;
+        /** Largest number of distinct values remembered. */
+        private static final int MAX_INTERNED = 1 << 16;
+
+        /** Encodings of the remembered values, by slot (null if empty). */
+        private byte[][] _keys;
+        /** _values[k] is the String whose encoding is _keys[k]. */
+        private String[] _values;
+        /** Number of remembered values. */
+        private int _count;
+    }
+
+    /** Number of rows handed to the Table at once. */
+    private static final int BATCH_ROWS = 1024;
+    /** Largest number of bytes mapped at once. */
+    private static final long CHUNK_SIZE = 1L << 28;
+    /** Returned by readField at the end of the file. */
+    private static final int EOF = -1;
+
+    /** Name of the table being read (without .db). */
+    private final String _name;
+    /** Channel for the file being read. */
+    private FileChannel _channel;
+    /** Length of the file. */
+    private long _length;
+    /** Number of bytes of the file mapped so far. */
+    private long _mapped;
+    /** The currently mapped chunk, or null before the first. */
+    private MappedByteBuffer _buffer;
+    /** Bytes of the field most recently read. */
+    private byte[] _field;
+    /** Number of bytes in _field. */
+    private int _fieldLength;
+}
@@ -1,50 +1,134 @@
 package db61b;
 
 import java.io.PrintStream;
-import java.util.regex.Matcher;
+import java.io.Reader;
 import java.util.regex.Pattern;
 import java.util.ArrayList;
 import java.util.Scanner;
 
 import static db61b.Utils.*;
 
-/** Represents a stream of db61b tokens read from a given Scanner.
+/** Represents a stream of db61b tokens read from a given Reader.  The
+ *  characters are broken into potential tokens by a Lexer, normally a
+ *  CharLexer.
  *  @author P. N. Hilfinger. */
 class Tokenizer {
 
+    /** A source of potential tokens: literals (possibly unterminated),
+     *  comments (possibly unterminated), identifiers, numerals, relation
+     *  symbols (=, <, <=, >=, and !=), end-of-line sequences, or other
+     *  single characters, with other whitespace skipped. */
+    interface Lexer {
+        /** Return the next potential token, or null at the end of the
+         *  input. */
+        String next();
+    }
+
+    /** A Lexer that finds tokens with a regular expression, TOKEN_PATN.
+     *  It defines the tokens that CharLexer must produce, and is kept to
+     *  check and measure CharLexer against (see Benchmark). */
+    static class PatternLexer implements Lexer {
+        /** A lexer reading characters from INPUT. */
+        PatternLexer(Reader input) {
+            _scanner = new Scanner(input);
+        }
+
+        @Override
+        public String next() {
+            return _scanner.findWithinHorizon(TOKEN_PATN, 0);
+        }
+
+        /** The source of my characters. */
+        private final Scanner _scanner;
+    }
+
+    /** A class of tokens, such as identifiers. */
+    abstract static class Kind {
+        /** Return true iff TOKEN is one of my tokens. */
+        abstract boolean matches(String token);
+    }
+
     /** Text of regular expressions that represent literals (possibly
-     *  unterminated), identifiers, and comments (possibly
+     *  unterminated), identifiers, numerals, and comments (possibly
      *  unterminated). */
     private static final String
         LITERAL_TEXT = "'(?:[^,'\n\r]*)'?",
         IDENTIFIER_TEXT = "[\\p{Alpha}_]\\w*",
+        NUMBER_TEXT = "\\d+",
         COMMENT_TEXT = "(?:/\\*.*?\\*/|/\\*.*)";
     /** Matches potential tokens, including valid or unterminated
      *  literals, valid or unterminated comments, identifiers,
-     *  relation symbols (=, <, <=, >=, and !=), end-of-line
+     *  numerals, relation symbols (=, <, <=, >=, and !=), end-of-line
      *  sequences, or other single characters.  The pattern matches a
      *  prefix of any string. */
     private static final Pattern
-        TOKEN_PATN = mkPatn("(?s)[<>!]?=|%s|%s|%s|\r?\n|\\S",
-                            LITERAL_TEXT, IDENTIFIER_TEXT, COMMENT_TEXT);
+        TOKEN_PATN = mkPatn("(?s)[<>!]?=|%s|%s|%s|%s|\r?\n|\\S",
+                            LITERAL_TEXT, IDENTIFIER_TEXT, NUMBER_TEXT,
+                            COMMENT_TEXT);
 
-    /** Patterns matching specific kinds of token.  These are intended
-     *  to be used with methods such as CommandInterpreter.name. */
-    static final Pattern
-        IDENTIFIER = mkPatn(IDENTIFIER_TEXT),
-        LITERAL = mkPatn("'.*"),
-        RELATION = mkPatn("[<>!]?=|[<>]");
+    /** Specific kinds of token: identifiers, literals, numerals, and
+     *  relation symbols.  These are intended to be used with methods such
+     *  as CommandInterpreter.name, and test tokens character by
+     *  character. */
+    static final Kind
+        IDENTIFIER = new Kind() {
+            @Override
+            boolean matches(String token) {
+                if (!CharLexer.isIdentifierStart(token.charAt(0))) {
+                    return false;
+                }
+                for (int i = 1; i < token.length(); i += 1) {
+                    if (!CharLexer.isWordChar(token.charAt(i))) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        },
+        LITERAL = new Kind() {
+            @Override
+            boolean matches(String token) {
+                return token.charAt(0) == '\'';
+            }
+        },
+        NUMBER = new Kind() {
+            @Override
+            boolean matches(String token) {
+                for (int i = 0; i < token.length(); i += 1) {
+                    if (!CharLexer.isDigit(token.charAt(i))) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        },
+        RELATION = new Kind() {
+            @Override
+            boolean matches(String token) {
+                switch (token) {
+                case "=": case "!=": case "<": case "<=": case ">": case ">=":
+                    return true;
+                default:
+                    return false;
+                }
+            }
+        };
 
-    /** A Tokenizer that reads tokens from S, and prompts on PROMPTER,
+    /** A Tokenizer that reads tokens from INPUT, and prompts on PROMPTER,
      *  if it is non-null. */
-    Tokenizer(Scanner s, PrintStream prompter) {
-        _input = s;
+    Tokenizer(Reader input, PrintStream prompter) {
+        this(new CharLexer(input), prompter);
+    }
+
+    /** A Tokenizer that reads potential tokens from LEXER, and prompts on
+     *  PROMPTER, if it is non-null. */
+    Tokenizer(Lexer lexer, PrintStream prompter) {
+        _input = lexer;
         _buffer = new ArrayList<>();
         _prompter = prompter;
         _continued = false;
         _shouldPrompt = true;
         _k = 0;
-        _mat = Pattern.compile(".").matcher("");
     }
 
     /** Read the next potential token and add it to _buffer.  Filters
@@ -54,7 +138,7 @@ class Tokenizer {
     private void readToken() {
         while (true) {
             prompt();
-            String token = _input.findWithinHorizon(TOKEN_PATN, 0);
+            String token = _input.next();
             if (token == null) {
                 token = "*EOF*";
             } else if (token.startsWith("'")) {
@@ -97,9 +181,9 @@ class Tokenizer {
         _continued = true;
     }
 
-    /** Read and return the next token, if it matches P.  Otherwise throw
-     *  DBException */
-    String next(Pattern p) {
+    /** Read and return the next token, if it is of kind P.  Otherwise
+     *  throw DBException */
+    String next(Kind p) {
         if (!nextIs(p)) {
             if (nextIs("*EOF*")) {
                 throw error("unexpected end of input");
@@ -123,9 +207,10 @@ class Tokenizer {
         return next();
     }
 
-    /** Read the next token, if it matches P, and return true.  Otherwise
-     *  return false.  Still throws DBException on detecting lexical errors. */
-    boolean nextIf(Pattern p) {
+    /** Read the next token, if it is of kind P, and return true.
+     *  Otherwise return false.  Still throws DBException on detecting
+     *  lexical errors. */
+    boolean nextIf(Kind p) {
         if (nextIs(p)) {
             next();
             return true;
@@ -144,11 +229,10 @@ class Tokenizer {
     }
 
 
-    /** Return true iff the next token matches P.  Throws DBException on
-     *  encountering a lexical error. */
-    boolean nextIs(Pattern p) {
-        String token = peek();
-        return _mat.usePattern(p).reset(token).matches();
+    /** Return true iff the next token is of kind P.  Throws DBException
+     *  on encountering a lexical error. */
+    boolean nextIs(Kind p) {
+        return p.matches(peek());
     }
 
     /** Return true iff the next token equals P.  Throws DBException on
@@ -209,10 +293,8 @@ class Tokenizer {
     }
 
 
-    /** Matcher used for pattern matching. */
-    private Matcher _mat;
-    /** The character input source. */
-    private Scanner _input;
+    /** The source of potential tokens. */
+    private Lexer _input;
     /** All tokens read since the last flush or beginning of input. */
     private ArrayList<String> _buffer;
     /** Output for prompts.  Null if prompts not used. */
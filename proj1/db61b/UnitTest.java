@@ -11,5 +11,12 @@ public class UnitTest {
      */
     public static void main(String[] ignored) {
         /* textui.runClasses(); */
+        ConcurrencyTest.run(CONCURRENCY_MILLIS);
+        ConcurrencyTest.runCached(CONCURRENCY_MILLIS);
     }
+
+    /** Duration of the concurrency stress test, in milliseconds.  Set by
+     *  the system property db61b.concurrencyMillis. */
+    static final long CONCURRENCY_MILLIS =
+        Long.getLong("db61b.concurrencyMillis", 3000);
 }
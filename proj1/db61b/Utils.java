@@ -1,5 +1,17 @@
 package db61b;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.IntBinaryOperator;
 import java.util.regex.Pattern;
 
 /** Various utilities used by other sources.
@@ -25,6 +37,123 @@ class Utils {
         return new DBException(format(s, args));
     }
 
+    /** Return a new, empty temporary file in the directory that contains
+     *  (or would contain) the file named NAME, suitable for writing
+     *  NAME's new contents before passing both to replaceFile. */
+    static File tempFileFor(String name) throws IOException {
+        File target = new File(name).getAbsoluteFile();
+        return File.createTempFile(target.getName() + ".", ".tmp",
+                                   target.getParentFile());
+    }
+
+    /** Flush OUTPUT, which writes through FILE, and force what has been
+     *  written to FILE onto the storage device, so that it survives a
+     *  crash of the system.  To be called on a temporary file from
+     *  tempFileFor before it is closed and passed to replaceFile. */
+    static void syncFile(Flushable output, FileOutputStream file)
+        throws IOException {
+        output.flush();
+        file.getFD().sync();
+    }
+
+    /** Rename TEMP, whose contents have been synced (see syncFile), to
+     *  NAME, replacing any existing file of that name, atomically if the
+     *  file system allows.  The directory holding NAME is then synced
+     *  too, where the platform allows, so that a crash cannot undo the
+     *  rename while keeping the old contents' removal, or vice versa. */
+    static void replaceFile(File temp, String name) throws IOException {
+        Path target = Paths.get(name).toAbsolutePath();
+        try {
+            Files.move(temp.toPath(), target,
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), target,
+                       StandardCopyOption.REPLACE_EXISTING);
+        }
+        try (FileChannel dir = FileChannel.open(target.getParent(),
+                                                StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            /* Directories cannot be opened or synced on some platforms
+             * (e.g., Windows), where the rename is already durable. */
+        }
+    }
+
+    /** Sort VALUES into the order given by ORDER, which returns <0, 0,
+     *  or >0 as its first argument precedes, is equivalent to, or
+     *  follows its second.  The sort is stable, and, unlike sorting an
+     *  Integer[], boxes nothing. */
+    static void sort(int[] values, IntBinaryOperator order) {
+        int[] temp = new int[values.length];
+        mergeSort(values, temp, 0, values.length, order);
+    }
+
+    /** Sort VALUES[FROM .. TO-1] as for sort, using TEMP[FROM .. TO-1]
+     *  as scratch space. */
+    private static void mergeSort(int[] values, int[] temp, int from,
+                                  int to, IntBinaryOperator order) {
+        if (to - from <= INSERTION_SORT_SIZE) {
+            for (int i = from + 1; i < to; i += 1) {
+                int v = values[i];
+                int j;
+                for (j = i; j > from
+                         && order.applyAsInt(values[j - 1], v) > 0; j -= 1) {
+                    values[j] = values[j - 1];
+                }
+                values[j] = v;
+            }
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(values, temp, from, mid, order);
+        mergeSort(values, temp, mid, to, order);
+        if (order.applyAsInt(values[mid - 1], values[mid]) <= 0) {
+            return;
+        }
+        System.arraycopy(values, from, temp, from, to - from);
+        merge(temp, from, mid, temp, mid, to, values, from, order);
+    }
+
+    /** Return the elements of VALUES0 and VALUES1, each in the order
+     *  given by ORDER (as for sort), merged into that order, those of
+     *  VALUES0 first among equivalent elements. */
+    static int[] merge(int[] values0, int[] values1, IntBinaryOperator order) {
+        int[] result = new int[values0.length + values1.length];
+        merge(values0, 0, values0.length, values1, 0, values1.length,
+              result, 0, order);
+        return result;
+    }
+
+    /** Merge VALUES0[FROM0 .. TO0-1] and VALUES1[FROM1 .. TO1-1], each in
+     *  the order given by ORDER, into RESULT starting at position AT, as
+     *  for merge.  RESULT's positions written must not overlap those
+     *  read. */
+    private static void merge(int[] values0, int from0, int to0,
+                              int[] values1, int from1, int to1,
+                              int[] result, int at,
+                              IntBinaryOperator order) {
+        int i, j, k;
+        i = from0;
+        j = from1;
+        k = at;
+        while (i < to0 && j < to1) {
+            if (order.applyAsInt(values0[i], values1[j]) <= 0) {
+                result[k] = values0[i];
+                i += 1;
+            } else {
+                result[k] = values1[j];
+                j += 1;
+            }
+            k += 1;
+        }
+        System.arraycopy(values0, i, result, k, to0 - i);
+        System.arraycopy(values1, j, result, k + to0 - i, to1 - j);
+    }
+
+    /** Length of the ranges that sort sorts by insertion. */
+    private static final int INSERTION_SORT_SIZE = 16;
+
 }
 
 
@@ -0,0 +1,502 @@
+package db61b;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.function.IntBinaryOperator;
+
+import static db61b.Utils.*;
+
+/** The values of one column of a Table, in order of row number, stored
+ *  dictionary-encoded.  Each distinct value is stored once, in my
+ *  dictionary, and given a code (its position there); each row holds
+ *  just the code of its value.  Codes are assigned in order of first
+ *  appearance, so they say nothing about the order of the values, but
+ *  a rank for each code (its value's position among my distinct values
+ *  in lexicographic order) is computed when needed and kept until a new
+ *  value arrives.  The sorted order of the values is kept even then, so
+ *  that only the values that have arrived since need to be sorted and
+ *  merged into it the next time ranks are needed.  Two rows of a
+ *  ValueList are equal iff their codes are, and compare as their ranks
+ *  do.
+ *
+ *  A ValueList holds values of one ColumnType.  Those of a numeric type
+ *  are kept in canonical form (see ColumnType.canonical), and also, by
+ *  code, in a primitive array (_longs or _doubles), from which their
+ *  ranks are computed, so that numeric values are ranked numerically.
+ *
+ *  A ValueList may instead be a view of some rows of another (its
+ *  source), as made by view: it holds just the numbers of those rows,
+ *  and shares its source's dictionary, codes, and ranks.  A view is
+ *  turned into an ordinary ValueList, with a dictionary of its own
+ *  holding just the values in its rows, the first time a row is added
+ *  to it (copy on write).
+ *  Since the rows of a ValueList never change once added, other than
+ *  by the compaction of a new table's rows (see Table.reindex) before
+ *  anything can view them, a view stays valid as its source grows.
+ *  @author Matthew Brennan
+ */
+class ValueList {
+
+    /** An empty ValueList of strings. */
+    ValueList() {
+        this(ColumnType.STRING);
+    }
+
+    /** An empty ValueList of values of type TYPE. */
+    ValueList(ColumnType type) {
+        _type = type;
+        _codes = new int[INITIAL_SIZE];
+        _dictionary = new ArrayList<>();
+        _lookup = new HashMap<>();
+        allocateNumbers(INITIAL_SIZE);
+    }
+
+    /** A ValueList of values of type TYPE holding SIZE rows, row r having
+     *  the value whose code is CODES[r] in DICTIONARY, which is indexed by
+     *  code.  CODES becomes mine.  Throws IllegalArgumentException if
+     *  DICTIONARY holds some value twice, or one that is not a canonical
+     *  value of TYPE. */
+    ValueList(ColumnType type, String[] dictionary, int[] codes, int size) {
+        _type = type;
+        _codes = codes.length == 0 ? new int[INITIAL_SIZE] : codes;
+        _size = size;
+        _dictionary = new ArrayList<>(Arrays.asList(dictionary));
+        _lookup = new HashMap<>();
+        allocateNumbers(Math.max(INITIAL_SIZE, dictionary.length));
+        for (int c = 0; c < dictionary.length; c += 1) {
+            if (!dictionary[c].equals(type.canonical(dictionary[c]))) {
+                throw new IllegalArgumentException("invalid value");
+            }
+            if (_lookup.put(dictionary[c], c) != null) {
+                throw new IllegalArgumentException("duplicate value");
+            }
+            setNumber(c, dictionary[c]);
+        }
+    }
+
+    /** A view of rows ROWS[0 .. SIZE-1] of SOURCE, which is not itself a
+     *  view.  ROWS becomes mine. */
+    private ValueList(ValueList source, int[] rows, int size) {
+        _source = source;
+        _rows = rows;
+        _size = size;
+        _type = source._type;
+        _dictionary = source._dictionary;
+        _lookup = source._lookup;
+    }
+
+    /** Return a view (see above) whose row i is my row ROWS[i], for
+     *  i < SIZE.  ROWS is neither changed nor kept.  A view of a view is
+     *  made a view of the original source. */
+    ValueList view(int[] rows, int size) {
+        if (_source == null) {
+            return new ValueList(this, Arrays.copyOf(rows, size), size);
+        }
+        int[] sourceRows = new int[size];
+        for (int i = 0; i < size; i += 1) {
+            sourceRows[i] = _rows[rows[i]];
+        }
+        return new ValueList(_source, sourceRows, size);
+    }
+
+    /** Return the type of my values. */
+    ColumnType type() {
+        return _type;
+    }
+
+    /** Return the number of rows I hold. */
+    int size() {
+        return _size;
+    }
+
+    /** Return the value in row ROW. */
+    String get(int row) {
+        return _dictionary.get(code(row));
+    }
+
+    /** Return the code of the value in row ROW. */
+    int code(int row) {
+        if (row >= _size) {
+            throw new IndexOutOfBoundsException("row " + row);
+        }
+        return _source == null ? _codes[row] : _source._codes[_rows[row]];
+    }
+
+    /** Append VALUE as a new last row, adding it to my dictionary if it
+     *  is not there already.  A value of a numeric type is first put in
+     *  canonical form; throws a DBException if it is not a value of my
+     *  type. */
+    void add(String value) {
+        if (_type.numeric()) {
+            value = _type.check(value);
+        }
+        materialize();
+        Integer code = _lookup.get(value);
+        if (code == null) {
+            code = _dictionary.size();
+            _dictionary.add(value);
+            _lookup.put(value, code);
+            setNumber(code, value);
+            _ranks = null;
+        }
+        if (_size == _codes.length) {
+            _codes = Arrays.copyOf(_codes, 2 * _size);
+        }
+        _codes[_size] = code;
+        _size += 1;
+    }
+
+    /** Make room for at least CAPACITY rows without further
+     *  allocation. */
+    void ensureCapacity(int capacity) {
+        materialize();
+        if (capacity > _codes.length) {
+            _codes = Arrays.copyOf(_codes,
+                                   Math.max(capacity, 2 * _codes.length));
+        }
+    }
+
+    /** Replace the value in row TO with that in row FROM. */
+    void copy(int from, int to) {
+        if (_source == null) {
+            _codes[to] = code(from);
+            return;
+        }
+        _rows[to] = _rows[from];
+        if (_codes != null) {
+            _codes[to] = _codes[from];
+        }
+    }
+
+    /** Remove all rows numbered SIZE and above. */
+    void truncate(int size) {
+        _size = Math.min(_size, size);
+    }
+
+    /** Return the number of distinct values in my dictionary. */
+    int distinct() {
+        return _dictionary.size();
+    }
+
+    /** Return the value whose code is CODE. */
+    String value(int code) {
+        return _dictionary.get(code);
+    }
+
+    /** Return the code of VALUE, or -1 if it is in none of my rows.  For
+     *  a numeric type, VALUE need not be in canonical form. */
+    int codeOf(String value) {
+        if (_type.numeric()) {
+            value = _type.canonical(value);
+            if (value == null) {
+                return -1;
+            }
+        }
+        Integer code = _lookup.get(value);
+        return code == null ? -1 : code;
+    }
+
+    /** Return the value whose code is CODE as a long.  My type must be
+     *  INT or LONG. */
+    long longValue(int code) {
+        return _source == null ? _longs[code] : _source._longs[code];
+    }
+
+    /** Return the value whose code is CODE as a double.  My type must be
+     *  numeric. */
+    double doubleValue(int code) {
+        if (_type == ColumnType.DOUBLE) {
+            return _source == null ? _doubles[code] : _source._doubles[code];
+        }
+        return longValue(code);
+    }
+
+    /** Return <0, 0, or >0 depending on whether the value with code CODE0
+     *  in VALUES0 is less than, equal to, or greater than that with code
+     *  CODE1 in VALUES1.  Values are compared as numbers if both lists are
+     *  numeric (as longs, if both are integers), and otherwise as
+     *  strings. */
+    static int compare(ValueList values0, int code0,
+                       ValueList values1, int code1) {
+        ColumnType type0 = values0._type, type1 = values1._type;
+        if (!type0.numeric() || !type1.numeric()) {
+            return values0.value(code0).compareTo(values1.value(code1));
+        } else if (type0 != ColumnType.DOUBLE
+                   && type1 != ColumnType.DOUBLE) {
+            return Long.compare(values0.longValue(code0),
+                                values1.longValue(code1));
+        } else {
+            return Double.compare(values0.doubleValue(code0),
+                                  values1.doubleValue(code1));
+        }
+    }
+
+    /** Return an array T such that for each code c of OTHER, T[c] is my
+     *  code for OTHER's value with code c, or -1 if I have no such
+     *  value.  Lets rows of two columns be matched by comparing codes.
+     *  Values are matched as compare matches them: if one of us holds
+     *  doubles and the other integers, by numeric value, so that the
+     *  int 10 matches the double 10.0; if one of us holds strings, as
+     *  strings, so that the string '010' does not match the int 10,
+     *  whichever of us is translated into the other. */
+    int[] translate(ValueList other) {
+        int[] result = new int[other.distinct()];
+        boolean mixed = _type.numeric() && other._type.numeric()
+            && (_type == ColumnType.DOUBLE) != (other._type
+                                                == ColumnType.DOUBLE);
+        for (int c = 0; c < result.length; c += 1) {
+            if (!mixed) {
+                Integer code = _lookup.get(other.value(c));
+                result[c] = code == null ? -1 : code;
+            } else if (_type == ColumnType.DOUBLE) {
+                result[c] = codeOf(Double.toString(other.doubleValue(c)));
+            } else {
+                double value = other.doubleValue(c);
+                result[c] = value == Math.rint(value)
+                    && Math.abs(value) < LONG_LIMIT
+                    ? codeOf(Long.toString((long) value)) : -1;
+            }
+        }
+        return result;
+    }
+
+    /** Return the rank of the value whose code is CODE: the number of
+     *  distinct values of mine that precede it lexicographically. */
+    int rank(int code) {
+        return ranks()[code];
+    }
+
+    /** Return the number of distinct values of mine that are less than
+     *  VALUE, which need not be one of them, but must be a value of my
+     *  type (else a DBException is thrown). */
+    int lowerRank(String value) {
+        value = _type.check(value);
+        int lo, hi;
+        lo = 0;
+        hi = _dictionary.size();
+        int[] order = order();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (_type.compare(_dictionary.get(order[mid]), value) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /** Return the number of distinct values of mine that are less than
+     *  or equal to VALUE, which need not be one of them, but must be a
+     *  value of my type. */
+    int upperRank(String value) {
+        int code = codeOf(value);
+        return code == -1 ? lowerRank(value) : rank(code) + 1;
+    }
+
+    /** Return my array of codes, indexed by row.  Only its first size()
+     *  elements are meaningful, and it is replaced as I grow, so callers
+     *  should not hold it across additions.  A view gathers the codes of
+     *  its rows into an array of its own the first time it is asked. */
+    int[] codes() {
+        int[] codes = _codes;
+        return codes != null ? codes : gatherCodes();
+    }
+
+    /** Return the codes of my rows, as for codes(), gathering them from my
+     *  source if that has not already been done.  Several readers of a
+     *  view may ask at once, so only one gathers them. */
+    private synchronized int[] gatherCodes() {
+        if (_codes == null) {
+            int[] codes = new int[_size];
+            for (int r = 0; r < _size; r += 1) {
+                codes[r] = _source._codes[_rows[r]];
+            }
+            _codes = codes;
+        }
+        return _codes;
+    }
+
+    /** Return my array of ranks, indexed by code, computing it (and
+     *  _order) if values have arrived since it was last computed.  As
+     *  for codes(), callers should not hold it across additions. */
+    int[] ranks() {
+        if (_source != null) {
+            return _source.ranks();
+        }
+        int[] ranks = _ranks;
+        return ranks != null ? ranks : computeRanks();
+    }
+
+    /** Return my array of ranks, as for ranks(), computing it and _order
+     *  if that has not already been done.  Only the codes added since
+     *  _order was last extended are sorted; they are then merged into
+     *  it.  Several readers may ask at once, so only one computes
+     *  them. */
+    private synchronized int[] computeRanks() {
+        if (_ranks == null) {
+            int n = _dictionary.size();
+            int old = _order == null ? 0 : _order.length;
+            int[] added = new int[n - old];
+            for (int c = old; c < n; c += 1) {
+                added[c - old] = c;
+            }
+            IntBinaryOperator byValue = new IntBinaryOperator() {
+                @Override
+                public int applyAsInt(int c0, int c1) {
+                    return compareCodes(c0, c1);
+                }
+            };
+            sort(added, byValue);
+            int[] order = old == 0 ? added : merge(_order, added, byValue);
+            int[] ranks = new int[n];
+            for (int r = 0; r < n; r += 1) {
+                ranks[order[r]] = r;
+            }
+            _order = order;
+            _ranks = ranks;
+        }
+        return _ranks;
+    }
+
+    /** Return <0, 0, or >0 depending on whether my value whose code is
+     *  C0 is less than, equal to, or greater than that whose code is C1.
+     *  I must not be a view. */
+    private int compareCodes(int c0, int c1) {
+        switch (_type) {
+        case INT:
+        case LONG:
+            return Long.compare(_longs[c0], _longs[c1]);
+        case DOUBLE:
+            return Double.compare(_doubles[c0], _doubles[c1]);
+        default:
+            return _dictionary.get(c0).compareTo(_dictionary.get(c1));
+        }
+    }
+
+    /** Return my array of codes in order of rank. */
+    private int[] order() {
+        if (_source != null) {
+            return _source.order();
+        }
+        ranks();
+        return _order;
+    }
+
+    /** Return a ValueList with my rows, whose dictionary holds only the
+     *  values in them: me, if I am not a view, and otherwise a new
+     *  ordinary ValueList, its values coded in order of first appearance,
+     *  so that a small view of a large source does not carry the
+     *  source's whole dictionary. */
+    ValueList compacted() {
+        if (_source == null) {
+            return this;
+        }
+        int[] newCodes = new int[_source.distinct()];
+        int[] codes = new int[_size];
+        ArrayList<String> dictionary = new ArrayList<>();
+        for (int r = 0; r < _size; r += 1) {
+            int code = _source._codes[_rows[r]];
+            if (newCodes[code] == 0) {
+                dictionary.add(_dictionary.get(code));
+                newCodes[code] = dictionary.size();
+            }
+            codes[r] = newCodes[code] - 1;
+        }
+        return new ValueList(_type,
+                             dictionary.toArray(new String[dictionary.size()]),
+                             codes, _size);
+    }
+
+    /** If I am a view, make me an ordinary ValueList with the same rows
+     *  and values, and a dictionary of my own holding just those values
+     *  (see compacted), so that I can change without changing my
+     *  source. */
+    private void materialize() {
+        if (_source == null) {
+            return;
+        }
+        ValueList compact = compacted();
+        _codes = compact._codes;
+        _dictionary = compact._dictionary;
+        _lookup = compact._lookup;
+        _longs = compact._longs;
+        _doubles = compact._doubles;
+        _source = null;
+        _rows = null;
+    }
+
+    /** Allocate the primitive array for the values of my type, if it is
+     *  numeric, with room for CAPACITY values. */
+    private void allocateNumbers(int capacity) {
+        switch (_type) {
+        case INT:
+        case LONG:
+            _longs = new long[capacity];
+            break;
+        case DOUBLE:
+            _doubles = new double[capacity];
+            break;
+        default:
+            break;
+        }
+    }
+
+    /** Record VALUE, a canonical value of my type, as that whose code is
+     *  CODE in my primitive array, if my type is numeric. */
+    private void setNumber(int code, String value) {
+        if (_longs != null) {
+            if (code == _longs.length) {
+                _longs = Arrays.copyOf(_longs, 2 * code);
+            }
+            _longs[code] = Long.parseLong(value);
+        } else if (_doubles != null) {
+            if (code == _doubles.length) {
+                _doubles = Arrays.copyOf(_doubles, 2 * code);
+            }
+            _doubles[code] = Double.parseDouble(value);
+        }
+    }
+
+    /** 2**63: doubles of smaller magnitude convert exactly to longs. */
+    private static final double LONG_LIMIT = 0x1p63;
+
+    /** Initial capacity of _codes. */
+    private static final int INITIAL_SIZE = 16;
+
+    /** The type of my values. */
+    private final ColumnType _type;
+
+    /** _codes[r] is the code of the value in row r, for r < _size.  In
+     *  a view, null until codes() is first called (see gatherCodes). */
+    private volatile int[] _codes;
+    /** My number of rows. */
+    private int _size;
+    /** My distinct values, indexed by code.  Shared with my source, if I
+     *  am a view. */
+    private ArrayList<String> _dictionary;
+    /** Maps each of my distinct values to its code.  Shared with my
+     *  source, if I am a view. */
+    private HashMap<String, Integer> _lookup;
+    /** For INT and LONG values, _longs[c] is the value whose code is c;
+     *  otherwise null.  In a view, null (see _source). */
+    private long[] _longs;
+    /** For DOUBLE values, _doubles[c] is the value whose code is c;
+     *  otherwise null.  In a view, null (see _source). */
+    private double[] _doubles;
+    /** _ranks[c] is the rank of code c, or _ranks is null if it must be
+     *  recomputed.  Set after _order, by one reader at a time (see
+     *  computeRanks), and cleared only by changes to me, which are never
+     *  concurrent with reading me (see Table). */
+    private volatile int[] _ranks;
+    /** _order[r] is the code whose rank is r among the first
+     *  _order.length codes, which are all my codes when _ranks is not
+     *  null; otherwise null.  Replaced, never changed, by computeRanks,
+     *  and kept as new values arrive. */
+    private int[] _order;
+    /** If I am a view, the ValueList whose rows I view; otherwise null. */
+    private ValueList _source;
+    /** If I am a view, _rows[r] is the number of my row r in _source. */
+    private int[] _rows;
+}
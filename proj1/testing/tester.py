@@ -49,19 +49,23 @@ class Proj1_Tester(testing.Tester):
         return result
 
 show=None
+java_flags="-ea"
 try:
-    opts, args = getopt.getopt(sys.argv[1:], '', ['show='])
+    opts, args = getopt.getopt(sys.argv[1:], '', ['show=', 'java-flags='])
     for opt, val in opts:
         if opt == '--show':
             show = int(val)
+        elif opt == '--java-flags':
+            java_flags = val
         else:
             assert False
 except:
-    print("Usage: python3 tester.py [--show=N] TEST.in...",
+    print("Usage: python3 tester.py [--show=N] [--java-flags=FLAGS] "
+          "TEST.in...",
           file=sys.stderr)
     sys.exit(1)
 
-tester = Proj1_Tester(tested_program="java -ea db61b.Main",
+tester = Proj1_Tester(tested_program="java {} db61b.Main".format(java_flags),
                       report_limit=show)
 
 sys.exit(0 if tester.test_all(args) else 1)